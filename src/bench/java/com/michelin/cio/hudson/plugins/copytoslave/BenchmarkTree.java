@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Synthetic source trees the benchmarks copy, cf. {@link CopyBenchmark}.
+ *
+ * <p>Trees are generated from a fixed seed, so that every run copies the same
+ * files; File names use a few extensions and prefixes for the
+ * {@link Patterns} to select part of them.</p>
+ */
+public enum BenchmarkTree {
+
+    /** Many files of a few hundred bytes, spread over a flat set of directories. */
+    TINY_FILES {
+        @Override
+        void generate(File dir, Random random) throws IOException {
+            for(int d = 0; d < 100; d++) {
+                for(int f = 0; f < 100; f++) {
+                    write(new File(dir, "dir" + d + "/file" + f + EXTENSIONS[f % EXTENSIONS.length]), random.nextInt(1024), random);
+                }
+            }
+        }
+    },
+    /** A few big binary files. */
+    HUGE_BINARIES {
+        @Override
+        void generate(File dir, Random random) throws IOException {
+            for(int f = 0; f < 4; f++) {
+                write(new File(dir, "dir" + f + "/file" + f + ".bin"), 32 * 1024 * 1024, random);
+            }
+        }
+    },
+    /** Small files at the bottom of deep chains of directories. */
+    DEEP_NESTING {
+        @Override
+        void generate(File dir, Random random) throws IOException {
+            for(int branch = 0; branch < 20; branch++) {
+                File level = new File(dir, "dir" + branch);
+                for(int depth = 0; depth < 30; depth++) {
+                    level = new File(level, "level" + depth);
+                    for(int f = 0; f < 3; f++) {
+                        write(new File(level, "file" + f + EXTENSIONS[(depth + f) % EXTENSIONS.length]), random.nextInt(4096), random);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Includes and excludes of increasing complexity.
+     */
+    public enum Patterns {
+        /** Everything. */
+        ALL("**", null),
+        /** A couple of extensions. */
+        SIMPLE("**/*.txt,**/*.bin", null),
+        /** Several patterns with wildcards at different levels, and excludes. */
+        COMPLEX("**/dir1*/**/*.txt,**/dir?/**/file1*,**/level2*/**/*.class,**/*.bin",
+                "**/dir15/**,**/*9.txt,**/level2?/level*/file2*");
+
+        final String includes;
+        final String excludes;
+
+        private Patterns(String includes, String excludes) {
+            this.includes = includes;
+            this.excludes = excludes;
+        }
+    }
+
+    abstract void generate(File dir, Random random) throws IOException;
+
+    /**
+     * Generates the tree into {@code dir}.
+     */
+    public void generate(File dir) throws IOException {
+        generate(dir, new Random(SEED));
+    }
+
+    private static void write(File f, int size, Random random) throws IOException {
+        f.getParentFile().mkdirs();
+        byte[] buffer = new byte[Math.min(size, 64 * 1024)];
+        OutputStream out = new FileOutputStream(f);
+        try {
+            for(int written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private final static String[] EXTENSIONS = {".txt", ".class", ".xml", ".bin"};
+    private final static long SEED = 42;
+
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Util;
+import hudson.util.FileVisitor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the stages of a copy on the {@link BenchmarkTree synthetic trees}:
+ * The scan of the source tree ({@link MyGlobDirScanner}), its archiving
+ * ({@link MyFilePath#writeToTar}), the extraction of the archive
+ * ({@link MyFilePath#readFromTar}), and the three of them end to end, the
+ * archive going through an in-process pipe as it would through a channel.
+ *
+ * <p>Run with {@code mvn -Pbenchmarks test-compile exec:exec}, which also
+ * reports the allocation rate (JMH's {@code gc} profiler). Besides the number
+ * of copies per second, the {@link Counters} give the number of files and
+ * bytes per second.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g") // the archive of HUGE_BINARIES is kept in memory
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+
+    @Param({"TINY_FILES", "HUGE_BINARIES", "DEEP_NESTING"})
+    public BenchmarkTree tree;
+
+    @Param({"ALL", "SIMPLE", "COMPLEX"})
+    public BenchmarkTree.Patterns patterns;
+
+    @Param({"TAR", "BATCH"})
+    public ArchiveFormat format;
+
+    private File sourceDir;
+    /** Archive of the source tree, for the extraction alone. */
+    private byte[] archive;
+    private int entries;
+    private ExecutorService archivers;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        sourceDir = Util.createTempDir();
+        tree.generate(sourceDir);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entries = MyFilePath.writeToTar(sourceDir, patterns.includes, patterns.excludes, true, format.createArchiver(out, true));
+        archive = out.toByteArray();
+
+        archivers = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        archivers.shutdownNow();
+        Util.deleteRecursive(sourceDir);
+    }
+
+    @Benchmark
+    public int scan(final Counters counters) throws IOException {
+        final int[] files = new int[1];
+        new MyGlobDirScanner(patterns.includes, patterns.excludes, true).scan(sourceDir, new FileVisitor() {
+            @Override
+            public void visit(File f, String relativePath) {
+                files[0]++;
+                counters.bytes += f.length();
+            }
+        });
+        counters.files += files[0];
+        return files[0];
+    }
+
+    @Benchmark
+    public int archive(Counters counters) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        int files = MyFilePath.writeToTar(sourceDir, patterns.includes, patterns.excludes, true, format.createArchiver(out, true));
+        counters.files += files;
+        counters.bytes += out.getByteCount();
+        return files;
+    }
+
+    @Benchmark
+    public void extract(TargetDir target, Counters counters) throws IOException {
+        MyFilePath.readFromTar(target.dir, false, new ByteArrayInputStream(archive), null, format);
+        counters.files += entries;
+        counters.bytes += archive.length;
+    }
+
+    @Benchmark
+    public int endToEnd(TargetDir target, Counters counters) throws Exception {
+        final PipedInputStream pipe = new PipedInputStream(PIPE_SIZE);
+        final OutputStream out = new PipedOutputStream(pipe);
+        // the extraction may stop reading before the archiver is done writing (e.g. tar's padding)
+        InputStream in = new FilterInputStream(pipe) {
+            @Override
+            public void close() throws IOException {
+                IOUtils.copy(pipe, new NullOutputStream());
+                super.close();
+            }
+        };
+        Future<Integer> archiving = archivers.submit(new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return MyFilePath.writeToTar(sourceDir, patterns.includes, patterns.excludes, true, format.createArchiver(out, true));
+            }
+        });
+        MyFilePath.readFromTar(target.dir, false, in, null, format);
+        int files = archiving.get();
+        counters.files += files;
+        counters.bytes += archive.length;
+        return files;
+    }
+
+    /**
+     * Directory the archives are extracted to, only used by the benchmarks
+     * which extract: Its cleanup is not measured, and doesn't slow the other
+     * benchmarks down.
+     */
+    @State(Scope.Thread)
+    public static class TargetDir {
+
+        File dir;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            dir = Util.createTempDir();
+        }
+
+        /**
+         * Extractions start from an empty directory.
+         */
+        @Setup(Level.Invocation)
+        public void clean() throws IOException {
+            Util.deleteContentsRecursive(dir);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            Util.deleteRecursive(dir);
+        }
+
+    }
+
+    /**
+     * Files and bytes (of the source tree or of the archive, depending on the
+     * stage) processed per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+
+        public long files;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+            bytes = 0;
+        }
+
+    }
+
+    private final static int PIPE_SIZE = 64 * 1024;
+
+}
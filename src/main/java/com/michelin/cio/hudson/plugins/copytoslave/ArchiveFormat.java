@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.util.io.Archiver;
+import java.io.OutputStream;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Format of the archive sent from a node to another one.
+ *
+ * <p>The format is part of the {@link TransferOptions} sent to both sides of a
+ * copy (and of the key of the cached bundles), so the receiving side always
+ * knows which one it reads; Tar remains the default.</p>
+ */
+public enum ArchiveFormat {
+
+    /**
+     * Standard tar archive.
+     */
+    TAR,
+    /**
+     * Compact format where the metadata of many files are sent together,
+     * followed by their packed content: Best for trees of small files.
+     */
+    BATCH;
+
+    /**
+     * @param deduplicate if {@code true}, files whose content has already been
+     *        archived are archived as references to the first one
+     */
+    public Archiver createArchiver(OutputStream out, boolean deduplicate) {
+        if(this == BATCH) {
+            return new BatchArchiver(out, deduplicate);
+        }
+        return new MyTarArchiver(out, deduplicate);
+    }
+
+    /**
+     * Parses the name of a format, returns {@code defaultValue} if it's blank
+     * or unknown.
+     */
+    public static ArchiveFormat fromName(String name, ArchiveFormat defaultValue) {
+        if(StringUtils.isBlank(name)) {
+            return defaultValue;
+        }
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Functions;
+import hudson.util.IOUtils;
+import hudson.util.io.Archiver;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the compact archive format read by {@link BatchInputStream}, cf.
+ * {@link ArchiveFormat#BATCH}.
+ *
+ * <p>Where tar spends a 512 bytes header (and up to 511 bytes of padding) on
+ * each file, this format groups the entries into blocks: The metadata of all
+ * the entries of a block come first, each path being stored as the length of
+ * the prefix it shares with the previous one plus the remaining characters,
+ * followed by the content of all the files of the block, without padding.</p>
+ *
+ * <pre>
+ * archive := MAGIC VERSION block* 0:int
+ * block   := count:int entry{count} content*
+ * entry   := prefix:varint suffix:UTF type:byte mode+1:varint
+ *            (FILE modTime:long size:varint | DIR | LINK modTime:long linkName:UTF)
+ * </pre>
+ *
+ * <p>Small files are read into memory till the block is full; Bigger ones get a
+ * block of their own, their content being streamed.</p>
+ */
+public class BatchArchiver extends Archiver {
+
+    final static byte[] MAGIC = {'C', 'T', 'S', 'B'};
+    final static int VERSION = 1;
+
+    final static byte FILE = 0;
+    final static byte DIR = 1;
+    final static byte LINK = 2;
+
+    private final DataOutputStream out;
+    private final TransferCodec.LevelGZIPOutputStream compression;
+    /** {@code null} when not deduplicating. */
+    private final DuplicateFinder duplicates;
+
+    private final List<Entry> block = new ArrayList<Entry>();
+    private int blockBytes;
+    private String previousPath = "";
+    private boolean started;
+
+    public BatchArchiver(OutputStream out, boolean deduplicate) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.compression = out instanceof TransferCodec.LevelGZIPOutputStream ? (TransferCodec.LevelGZIPOutputStream) out : null;
+        this.duplicates = deduplicate ? new DuplicateFinder() : null;
+    }
+
+    public void visit(File file, String relativePath) throws IOException {
+        if(Functions.isWindows()) {
+            relativePath = relativePath.replace('\\', '/');
+        }
+
+        Entry entry = new Entry(relativePath);
+        entry.mode = IOUtils.mode(file);
+        entry.modTime = file.lastModified();
+
+        if(file.isDirectory()) {
+            entry.type = DIR;
+        }
+        else if(duplicates != null && (entry.linkName = duplicates.findOriginal(file, relativePath)) != null) {
+            entry.type = LINK;
+        }
+        else if(file.length() > MAX_BUFFERED_SIZE) {
+            flushBlock();
+            writeBigFile(file, entry);
+            entriesWritten++;
+            return;
+        }
+        else {
+            entry.type = FILE;
+            entry.content = readFully(file);
+            blockBytes += entry.content.length;
+        }
+
+        block.add(entry);
+        entriesWritten++;
+        if(block.size() >= MAX_BLOCK_ENTRIES || blockBytes >= MAX_BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    public void close() throws IOException {
+        flushBlock();
+        out.writeInt(0);
+        out.close();
+    }
+
+    /**
+     * Writes the current block, if any, preceded by the magic header for the
+     * first one.
+     */
+    private void flushBlock() throws IOException {
+        if(!started) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            started = true;
+        }
+        if(block.isEmpty()) {
+            return;
+        }
+        if(compression != null) {
+            compression.startEntry(""); // the block mixes all kinds of files
+        }
+        out.writeInt(block.size());
+        for(Entry entry : block) {
+            writeHeader(entry, entry.content != null ? entry.content.length : 0);
+        }
+        for(Entry entry : block) {
+            if(entry.content != null) {
+                out.write(entry.content);
+            }
+        }
+        block.clear();
+        blockBytes = 0;
+    }
+
+    /**
+     * Writes a block made of a single file, whose content isn't loaded into
+     * memory.
+     */
+    private void writeBigFile(File file, Entry entry) throws IOException {
+        entry.type = FILE;
+        long size = file.length();
+        if(compression != null) {
+            compression.startEntry(file.getName());
+        }
+        out.writeInt(1);
+        writeHeader(entry, size);
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            long remaining = size;
+            while(remaining > 0) {
+                int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if(len < 0) {
+                    throw new IOException(file + " has been truncated while being archived");
+                }
+                out.write(buf, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeHeader(Entry entry, long size) throws IOException {
+        int prefix = 0;
+        int max = Math.min(previousPath.length(), entry.path.length());
+        while(prefix < max && previousPath.charAt(prefix) == entry.path.charAt(prefix)) {
+            prefix++;
+        }
+        writeVarLong(prefix);
+        out.writeUTF(entry.path.substring(prefix));
+        previousPath = entry.path;
+
+        out.writeByte(entry.type);
+        writeVarLong(entry.mode + 1L);
+        if(entry.type == FILE) {
+            out.writeLong(entry.modTime);
+            writeVarLong(size);
+        }
+        else if(entry.type == LINK) {
+            out.writeLong(entry.modTime);
+            out.writeUTF(entry.linkName);
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a small file at once, so that the size written in the header
+     * matches the content even if the file is being modified.
+     */
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int len = 0, read;
+            while(len < content.length && (read = in.read(content, len, content.length - len)) >= 0) {
+                len += read;
+            }
+            if(len < content.length) {
+                byte[] truncated = new byte[len];
+                System.arraycopy(content, 0, truncated, 0, len);
+                return truncated;
+            }
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Entry {
+
+        final String path;
+        byte type;
+        int mode;
+        long modTime;
+        String linkName;
+        byte[] content;
+
+        Entry(String path) {
+            this.path = path;
+        }
+
+    }
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+    /** Files bigger than this get a block of their own. */
+    private final static long MAX_BUFFERED_SIZE = 64 * 1024;
+    private final static int MAX_BLOCK_ENTRIES = 1024;
+    private final static int MAX_BLOCK_SIZE = 1024 * 1024;
+
+}
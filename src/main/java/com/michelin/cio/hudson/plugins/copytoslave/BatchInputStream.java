@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+
+/**
+ * Reads the archives written by {@link BatchArchiver} the same way as
+ * {@code TarInputStream} reads tar archives: {@link #getNextEntry} returns the
+ * next entry, whose content is then read from this stream.
+ */
+public class BatchInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private Iterator<TarEntry> block;
+    private String previousPath = "";
+    private long remaining;
+    private boolean finished;
+
+    /**
+     * @param in a stream positioned at the beginning of a batched archive
+     */
+    public BatchInputStream(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        byte[] magic = new byte[BatchArchiver.MAGIC.length];
+        this.in.readFully(magic);
+        if(!Arrays.equals(magic, BatchArchiver.MAGIC)) {
+            throw new IOException("Not a batched archive");
+        }
+        int version = this.in.readUnsignedByte();
+        if(version != BatchArchiver.VERSION) {
+            throw new IOException("Unsupported version of the batched archive format: " + version);
+        }
+    }
+
+    /**
+     * Returns the next entry, or {@code null} at the end of the archive; The
+     * content of the previous entry is skipped if it hasn't been read.
+     */
+    public TarEntry getNextEntry() throws IOException {
+        skipContent();
+        if(finished) {
+            return null;
+        }
+        if(block == null || !block.hasNext()) {
+            int count = in.readInt();
+            if(count == 0) {
+                finished = true;
+                return null;
+            }
+            List<TarEntry> entries = new ArrayList<TarEntry>(count);
+            for(int i = 0; i < count; i++) {
+                entries.add(readHeader());
+            }
+            block = entries.iterator();
+        }
+        TarEntry entry = block.next();
+        remaining = entry.isDirectory() ? 0 : entry.getSize();
+        return entry;
+    }
+
+    private TarEntry readHeader() throws IOException {
+        int prefix = (int) readVarLong();
+        if(prefix > previousPath.length()) {
+            throw new IOException("Corrupted batched archive");
+        }
+        String path = previousPath.substring(0, prefix) + in.readUTF();
+        previousPath = path;
+
+        byte type = in.readByte();
+        int mode = (int) (readVarLong() - 1);
+        TarEntry entry;
+        switch(type) {
+            case BatchArchiver.FILE:
+                entry = new TarEntry(path);
+                entry.setModTime(in.readLong());
+                entry.setSize(readVarLong());
+                break;
+            case BatchArchiver.DIR:
+                entry = new TarEntry(path + '/');
+                break;
+            case BatchArchiver.LINK:
+                entry = new TarEntry(path, TarConstants.LF_LINK);
+                entry.setModTime(in.readLong());
+                entry.setLinkName(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown entry type in batched archive: " + type);
+        }
+        if(mode != -1) {
+            entry.setMode(mode);
+        }
+        return entry;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if(shift > 63) {
+                throw new IOException("Corrupted batched archive");
+            }
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+
+    private void skipContent() throws IOException {
+        while(remaining > 0) {
+            long skipped = in.skip(remaining);
+            if(skipped <= 0) {
+                in.readByte(); // throws at the end of the stream
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(remaining <= 0) {
+            return -1;
+        }
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if(read < 0) {
+            throw new IOException("Unexpected end of the stream");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+}
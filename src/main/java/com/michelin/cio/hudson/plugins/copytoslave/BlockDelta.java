@@ -0,0 +1,606 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Hudson;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOException2;
+import hudson.util.IOUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * rsync-like transfer of big files which already exist on the target node
+ * but have slightly changed on the source.
+ *
+ * <p>The target node computes the {@link Signatures} of its version of each
+ * file: A weak rolling checksum and an MD5 checksum per block. The source node
+ * then looks for these blocks, at any offset, in its own version and sends
+ * only the bytes which don't match any block (literals) and references to the
+ * blocks which do. The target node rebuilds the file into a temporary file,
+ * checks its MD5 checksum and renames it over its former version.</p>
+ *
+ * <p>Deltas go through a pipe of their own, compressed and throttled like the
+ * tar archive of the other files.</p>
+ */
+public class BlockDelta {
+
+    /**
+     * Sends the deltas of the files of {@code paths} which are at least
+     * {@link TransferOptions#getBlockDeltaThreshold()} big and which exist on
+     * the target node.
+     *
+     * @return the paths which remain to be sent as a whole
+     */
+    static List<String> transfer(
+            FilePath source, FileManifest manifest, List<String> paths, boolean flatten,
+            FilePath target, TransferOptions options) throws IOException, InterruptedException {
+        Map<String, String> candidates = new HashMap<String, String>(); // target path -> source path
+        Map<String, FileManifest.Entry> entries = new HashMap<String, FileManifest.Entry>();
+        for(FileManifest.Entry entry : manifest.getEntries()) {
+            entries.put(entry.getPath(), entry);
+        }
+        for(String path : paths) {
+            FileManifest.Entry entry = entries.get(path);
+            if(entry != null && entry.getSize() >= options.getBlockDeltaThreshold()) {
+                candidates.put(FileManifest.getTargetPath(path, flatten), path);
+            }
+        }
+        if(candidates.isEmpty()) {
+            return paths;
+        }
+
+        Map<String, Signatures> signatures = target.act(new ComputeSignatures(new ArrayList<String>(candidates.keySet())));
+        if(signatures.isEmpty()) {
+            return paths;
+        }
+        HashMap<String, Signatures> bySourcePath = new HashMap<String, Signatures>();
+        for(Map.Entry<String, Signatures> e : signatures.entrySet()) {
+            bySourcePath.put(candidates.get(e.getKey()), e.getValue());
+        }
+
+        TransferStatistics sent, received;
+        if(!source.isRemote()) {
+            Pipe pipe = Pipe.createLocalToRemote();
+            Future<TransferStatistics> future = target.actAsync(new Decode(pipe, flatten, options));
+            sent = new Encode(pipe, bySourcePath, options).invoke(new File(source.getRemote()), Hudson.MasterComputer.localChannel);
+            received = waitFor(future);
+        }
+        else {
+            Pipe pipe = Pipe.createRemoteToLocal();
+            Future<TransferStatistics> future = source.actAsync(new Encode(pipe, bySourcePath, options));
+            received = new Decode(pipe, flatten, options).invoke(new File(target.getRemote()), Hudson.MasterComputer.localChannel);
+            sent = waitFor(future);
+        }
+        options.getStatistics().add(sent);
+        options.getStatistics().add(received);
+
+        List<String> remaining = new ArrayList<String>(paths);
+        remaining.removeAll(bySourcePath.keySet());
+        return remaining;
+    }
+
+    private static <T> T waitFor(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException2(e);
+        }
+    }
+
+    /**
+     * Block size used for a file: About the square root of its size, as rsync
+     * does, so that both the number of blocks and their size grow slowly.
+     */
+    static int getBlockSize(long fileSize) {
+        int size = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(fileSize)));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Checksums of the full blocks of a file.
+     */
+    public static class Signatures implements Serializable {
+
+        private static final long serialVersionUID = 1;
+
+        private final int blockSize;
+        private final int[] weak;
+        /** MD5 checksums of the blocks, 16 bytes each. */
+        private final byte[] strong;
+
+        Signatures(int blockSize, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public static Signatures compute(File f) throws IOException {
+            int blockSize = getBlockSize(f.length());
+            int count = (int) (f.length() / blockSize);
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * 16];
+            MessageDigest md5 = newMD5();
+
+            InputStream in = new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+            try {
+                byte[] block = new byte[blockSize];
+                for(int i = 0; i < count; i++) {
+                    readFully(in, block, blockSize);
+                    weak[i] = new RollingChecksum(block, 0, blockSize).get();
+                    md5.update(block, 0, blockSize);
+                    System.arraycopy(md5.digest(), 0, strong, i * 16, 16);
+                }
+            } finally {
+                in.close();
+            }
+            return new Signatures(blockSize, weak, strong);
+        }
+
+        int getBlockSize() {
+            return blockSize;
+        }
+
+        int getCount() {
+            return weak.length;
+        }
+
+        boolean matches(int block, byte[] digest) {
+            for(int i = 0; i < 16; i++) {
+                if(strong[block * 16 + i] != digest[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * rsync's weak checksum, which can be rolled one byte forward in constant
+     * time.
+     */
+    static class RollingChecksum {
+
+        private final int length;
+        private int a;
+        private int b;
+
+        RollingChecksum(byte[] buf, int off, int length) {
+            this.length = length;
+            for(int i = 0; i < length; i++) {
+                int x = buf[off + i] & 0xff;
+                a += x;
+                b += (length - i) * x;
+            }
+            a &= 0xffff;
+            b &= 0xffff;
+        }
+
+        void roll(byte out, byte in) {
+            a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+            b = (b - length * (out & 0xff) + a) & 0xffff;
+        }
+
+        int get() {
+            return a | (b << 16);
+        }
+
+    }
+
+    /**
+     * Writes the delta of {@code f} against {@code signatures}.
+     */
+    static void encode(File f, Signatures signatures, DataOutputStream out) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        Map<Integer, List<Integer>> index = new HashMap<Integer, List<Integer>>();
+        for(int i = 0; i < signatures.getCount(); i++) {
+            List<Integer> blocks = index.get(signatures.weak[i]);
+            if(blocks == null) {
+                blocks = new ArrayList<Integer>(1);
+                index.put(signatures.weak[i], blocks);
+            }
+            blocks.add(i);
+        }
+
+        MessageDigest fileMD5 = newMD5();
+        MessageDigest blockMD5 = newMD5();
+        Encoder encoder = new Encoder(out);
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[Math.max(BUFFER_SIZE, blockSize * 4)];
+            int start = 0, end = 0;
+            boolean eof = false;
+            RollingChecksum checksum = null;
+
+            while(true) {
+                if(end - start < blockSize && !eof) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    while(end < buf.length) {
+                        int read = in.read(buf, end, buf.length - end);
+                        if(read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        end += read;
+                    }
+                }
+                if(end - start < blockSize) {
+                    break; // the tail is sent as a literal
+                }
+
+                if(checksum == null) {
+                    checksum = new RollingChecksum(buf, start, blockSize);
+                }
+                int match = -1;
+                List<Integer> blocks = index.get(checksum.get());
+                if(blocks != null) {
+                    blockMD5.update(buf, start, blockSize);
+                    byte[] digest = blockMD5.digest();
+                    for(int block : blocks) {
+                        if(signatures.matches(block, digest)) {
+                            match = block;
+                            break;
+                        }
+                    }
+                }
+
+                if(match >= 0) {
+                    encoder.copy(match);
+                    fileMD5.update(buf, start, blockSize);
+                    start += blockSize;
+                    checksum = null;
+                }
+                else {
+                    encoder.literal(buf[start]);
+                    fileMD5.update(buf[start]);
+                    if(end - start > blockSize) {
+                        checksum.roll(buf[start], buf[start + blockSize]);
+                    }
+                    else {
+                        checksum = null;
+                    }
+                    start++;
+                }
+            }
+
+            encoder.literal(buf, start, end - start);
+            fileMD5.update(buf, start, end - start);
+            encoder.end(fileMD5.digest());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rebuilds {@code f} from its current version and the delta read from
+     * {@code in}.
+     */
+    static void decode(File f, int blockSize, DataInputStream in) throws IOException {
+        File tmp = new File(f.getParentFile(), f.getName() + TMP_SUFFIX);
+        MessageDigest md5 = newMD5();
+        RandomAccessFile former = new RandomAccessFile(f, "r");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+            try {
+                byte[] buf = new byte[Math.max(BUFFER_SIZE, blockSize)];
+                while(true) {
+                    int op = in.readByte();
+                    if(op == OP_LITERAL) {
+                        int len = in.readInt();
+                        while(len > 0) {
+                            int chunk = Math.min(len, buf.length);
+                            in.readFully(buf, 0, chunk);
+                            out.write(buf, 0, chunk);
+                            md5.update(buf, 0, chunk);
+                            len -= chunk;
+                        }
+                    }
+                    else if(op == OP_COPY) {
+                        int block = in.readInt();
+                        int count = in.readInt();
+                        former.seek((long) block * blockSize);
+                        for(int i = 0; i < count; i++) {
+                            former.readFully(buf, 0, blockSize);
+                            out.write(buf, 0, blockSize);
+                            md5.update(buf, 0, blockSize);
+                        }
+                    }
+                    else if(op == OP_END) {
+                        byte[] expected = new byte[16];
+                        in.readFully(expected);
+                        if(!Arrays.equals(expected, md5.digest())) {
+                            throw new IOException("Checksum mismatch after rebuilding " + f);
+                        }
+                        break;
+                    }
+                    else {
+                        throw new IOException("Unexpected delta operation " + op + " for " + f);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            former.close();
+        }
+
+        f.delete();
+        if(!tmp.renameTo(f)) {
+            throw new IOException("Failed to move " + tmp + " to " + f);
+        }
+    }
+
+    /**
+     * Writes delta operations, merging literals and consecutive block
+     * references.
+     */
+    private static class Encoder {
+
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        private int copyStart = -1;
+        private int copyCount;
+
+        Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void copy(int block) throws IOException {
+            flushLiteral();
+            if(copyCount > 0 && copyStart + copyCount == block) {
+                copyCount++;
+            }
+            else {
+                flushCopy();
+                copyStart = block;
+                copyCount = 1;
+            }
+        }
+
+        void literal(byte b) throws IOException {
+            flushCopy();
+            literal.write(b);
+            if(literal.size() >= MAX_LITERAL_SIZE) {
+                flushLiteral();
+            }
+        }
+
+        void literal(byte[] b, int off, int len) throws IOException {
+            flushCopy();
+            literal.write(b, off, len);
+            flushLiteral();
+        }
+
+        void end(byte[] digest) throws IOException {
+            flushCopy();
+            flushLiteral();
+            out.writeByte(OP_END);
+            out.write(digest);
+        }
+
+        private void flushLiteral() throws IOException {
+            if(literal.size() > 0) {
+                out.writeByte(OP_LITERAL);
+                out.writeInt(literal.size());
+                literal.writeTo(out);
+                literal.reset();
+            }
+        }
+
+        private void flushCopy() throws IOException {
+            if(copyCount > 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyStart);
+                out.writeInt(copyCount);
+                copyCount = 0;
+            }
+        }
+
+    }
+
+    /**
+     * Run on the target node to compute the signatures of the files it holds.
+     */
+    private static class ComputeSignatures implements FileCallable<Map<String, Signatures>> {
+
+        private static final long serialVersionUID = 1;
+
+        private final List<String> targetPaths;
+
+        ComputeSignatures(List<String> targetPaths) {
+            this.targetPaths = targetPaths;
+        }
+
+        public Map<String, Signatures> invoke(File baseDir, VirtualChannel channel) throws IOException {
+            HashMap<String, Signatures> signatures = new HashMap<String, Signatures>();
+            for(String targetPath : targetPaths) {
+                File f = new File(baseDir, targetPath);
+                if(f.isFile() && f.length() >= MIN_BLOCK_SIZE) {
+                    signatures.put(targetPath, Signatures.compute(f));
+                }
+            }
+            return signatures;
+        }
+
+    }
+
+    /**
+     * Run on the source node to write the deltas to a pipe.
+     */
+    private static class Encode implements FileCallable<TransferStatistics> {
+
+        private static final long serialVersionUID = 1;
+
+        private final Pipe pipe;
+        private final HashMap<String, Signatures> signatures;
+        private final TransferOptions options;
+
+        Encode(Pipe pipe, HashMap<String, Signatures> signatures, TransferOptions options) {
+            this.pipe = pipe;
+            this.signatures = signatures;
+            this.options = options;
+        }
+
+        public TransferStatistics invoke(File baseDir, VirtualChannel channel) throws IOException {
+            long start = System.currentTimeMillis();
+            OutputStream out = pipe.getOut();
+            if(options.getThrottle() != null) { // only set when running on the master
+                out = options.getThrottle().wrap(out);
+            }
+            CountingOutputStream wire = new CountingOutputStream(out);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+                    options.getCodec().compress(wire, options.getCompressionLevel()), BUFFER_SIZE));
+
+            TransferStatistics statistics = new TransferStatistics();
+            try {
+                for(Map.Entry<String, Signatures> e : signatures.entrySet()) {
+                    File f = new File(baseDir, e.getKey());
+                    data.writeBoolean(true);
+                    data.writeUTF(e.getKey());
+                    data.writeLong(f.lastModified());
+                    data.writeInt(IOUtils.mode(f));
+                    data.writeInt(e.getValue().getBlockSize());
+                    encode(f, e.getValue(), data);
+                    statistics.addFilesSent(1);
+                    statistics.addRawBytes(f.length());
+                }
+                data.writeBoolean(false);
+            } finally {
+                data.close();
+            }
+
+            statistics.addWireBytes(wire.getByteCount());
+            statistics.addArchiveTime(System.currentTimeMillis() - start);
+            return statistics;
+        }
+
+    }
+
+    /**
+     * Run on the target node to apply the deltas read from a pipe.
+     */
+    private static class Decode implements FileCallable<TransferStatistics> {
+
+        private static final long serialVersionUID = 1;
+
+        private final Pipe pipe;
+        private final boolean flatten;
+        private final TransferOptions options;
+
+        Decode(Pipe pipe, boolean flatten, TransferOptions options) {
+            this.pipe = pipe;
+            this.flatten = flatten;
+            this.options = options;
+        }
+
+        public TransferStatistics invoke(File baseDir, VirtualChannel channel) throws IOException {
+            long start = System.currentTimeMillis();
+            InputStream in = pipe.getIn();
+            if(options.getThrottle() != null) { // only set when running on the master
+                in = options.getThrottle().wrap(in);
+            }
+            DataInputStream data = new DataInputStream(new BufferedInputStream(options.getCodec().extract(in), BUFFER_SIZE));
+            try {
+                FileMetadata metadata = new FileMetadata();
+                while(data.readBoolean()) {
+                    String path = data.readUTF();
+                    long lastModified = data.readLong();
+                    int mode = data.readInt();
+                    int blockSize = data.readInt();
+                    File f = new File(baseDir, FileManifest.getTargetPath(path, flatten));
+                    decode(f, blockSize, data);
+                    metadata.add(f, lastModified, mode);
+                }
+                metadata.apply();
+            } finally {
+                data.close();
+            }
+
+            TransferStatistics statistics = new TransferStatistics();
+            statistics.addExtractTime(System.currentTimeMillis() - start);
+            return statistics;
+        }
+
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int off = 0;
+        while(off < len) {
+            int read = in.read(buf, off, len - off);
+            if(read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            off += read;
+        }
+    }
+
+    private static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // MD5 is always available
+        }
+    }
+
+    private final static int MIN_BLOCK_SIZE = 4 * 1024;
+    private final static int MAX_BLOCK_SIZE = 1024 * 1024;
+    private final static int BUFFER_SIZE = 256 * 1024;
+    private final static int MAX_LITERAL_SIZE = 256 * 1024;
+    private final static String TMP_SUFFIX = ".copy-to-slave-delta";
+
+    private final static byte OP_END = 0;
+    private final static byte OP_LITERAL = 1;
+    private final static byte OP_COPY = 2;
+
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.model.Hudson;
+import hudson.util.IOException2;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * Cache, on the master, of the compressed archives sent to slaves, so that
+ * builds starting at the same time on many slaves don't all scan and compress
+ * the same files.
+ *
+ * <p>Archives ("bundles") are identified by a key which is computed by the
+ * caller and which must change whenever the content of the archive would
+ * change. The least recently used bundles are deleted as soon as the size of
+ * the cache exceeds its limit, unless they're being sent.</p>
+ */
+public class BundleCache {
+
+    private final File dir;
+    /** key -> size, in access order. */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    /** Bundles being built, so that concurrent requests wait for the same build. */
+    private final Map<String, FutureTask<File>> building = new HashMap<String, FutureTask<File>>();
+    /** key -> number of callers currently sending the bundle. */
+    private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+    private long size;
+    private long maxSize;
+
+    BundleCache(File dir) {
+        this.dir = dir;
+        load();
+    }
+
+    public static synchronized BundleCache get() {
+        if(instance == null) {
+            instance = new BundleCache(new File(Hudson.getInstance().getRootDir(), "copy-to-slave-bundles"));
+        }
+        return instance;
+    }
+
+    private synchronized void load() {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long l1 = f1.lastModified(), l2 = f2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        for(File f : files) {
+            if(f.getName().endsWith(TMP_SUFFIX)) {
+                f.delete(); // leftover of an interrupted build
+            }
+            else {
+                index.put(f.getName(), f.length());
+                size += f.length();
+            }
+        }
+    }
+
+    /**
+     * Returns the bundle identified by {@code key}, building it using
+     * {@code builder} if needed.
+     *
+     * <p>The bundle is guaranteed to not be deleted till {@link #release} is
+     * called with the same key.</p>
+     *
+     * @param maxSize maximum size of the cache, in bytes
+     */
+    public File acquire(final String key, final Builder builder, long maxSize) throws IOException, InterruptedException {
+        while(true) {
+            FutureTask<File> task;
+            boolean owner = false;
+
+            synchronized(this) {
+                this.maxSize = maxSize;
+                File bundle = getFile(key);
+                if(index.get(key) != null && bundle.isFile()) {
+                    markInUse(key);
+                    return bundle;
+                }
+                task = building.get(key);
+                if(task == null) {
+                    task = new FutureTask<File>(new Callable<File>() {
+                        public File call() throws Exception {
+                            return build(key, builder);
+                        }
+                    });
+                    building.put(key, task);
+                    owner = true;
+                }
+            }
+
+            try {
+                if(owner) {
+                    task.run();
+                }
+                task.get();
+            } catch (ExecutionException e) {
+                throw new IOException2("Failed to build the bundle " + key, e.getCause());
+            } finally {
+                if(owner) {
+                    synchronized(this) {
+                        building.remove(key);
+                    }
+                }
+            }
+            // loop: the bundle is now in the cache, unless it has already been evicted
+        }
+    }
+
+    public synchronized void release(String key) {
+        Integer count = inUse.get(key);
+        if(count == null || count <= 1) {
+            inUse.remove(key);
+        }
+        else {
+            inUse.put(key, count - 1);
+        }
+        evict();
+    }
+
+    private File build(String key, Builder builder) throws IOException, InterruptedException {
+        dir.mkdirs();
+        File tmp = File.createTempFile(key, TMP_SUFFIX, dir);
+        try {
+            builder.build(tmp);
+            File bundle = getFile(key);
+            synchronized(this) {
+                bundle.delete();
+                if(!tmp.renameTo(bundle)) {
+                    throw new IOException("Failed to move " + tmp + " to " + bundle);
+                }
+                Long previous = index.put(key, bundle.length());
+                size += bundle.length() - (previous != null ? previous : 0);
+                // no eviction here: the callers waiting for this bundle haven't marked it as in use yet
+            }
+            return bundle;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private void markInUse(String key) {
+        Integer count = inUse.get(key);
+        inUse.put(key, count == null ? 1 : count + 1);
+    }
+
+    private File getFile(String key) {
+        return new File(dir, key);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while(size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if(inUse.containsKey(eldest.getKey())) {
+                continue;
+            }
+            File bundle = getFile(eldest.getKey());
+            if(bundle.delete() || !bundle.exists()) {
+                size -= eldest.getValue();
+                it.remove();
+            }
+            else {
+                LOGGER.warning("Failed to evict " + bundle);
+            }
+        }
+    }
+
+    /**
+     * Writes a bundle into a file.
+     */
+    public interface Builder {
+        void build(File bundle) throws IOException, InterruptedException;
+    }
+
+    private static BundleCache instance;
+
+    private final static String TMP_SUFFIX = ".tmp";
+
+    private final static Logger LOGGER = Logger.getLogger(BundleCache.class.getName());
+
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.SlaveComputer;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills the file cache of a slave as soon as it comes online, so that the
+ * first builds running on it only get what has changed since.
+ *
+ * <p>The files are the ones which would be copied by the jobs which can run on
+ * the slave. They're copied into a scratch directory, through the cache of the
+ * slave, and this directory is deleted afterwards. Copies whose patterns or
+ * source directory depend on the build (environment variables, workspace of
+ * the job) are skipped. Prefetching stops as soon as the slave starts a
+ * build, and uses its own bandwidth limit rather than the one shared with the
+ * copies of the builds.</p>
+ */
+@Extension
+public class CachePrefetcher extends ComputerListener {
+
+    @Override
+    public void onOnline(final Computer c, final TaskListener listener) {
+        final CopyToSlaveBuildWrapper.DescriptorImpl globalConfig =
+                Hudson.getInstance().getDescriptorByType(CopyToSlaveBuildWrapper.DescriptorImpl.class);
+        if(!(c instanceof SlaveComputer) || globalConfig == null || !globalConfig.isPrefetchEnabled()) {
+            return;
+        }
+        final Node node = c.getNode();
+        final SlaveFileCache.Config cacheConfig = globalConfig.getSlaveCacheConfig(node);
+        if(cacheConfig == null) {
+            return; // nowhere to prefetch to
+        }
+
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    prefetch(c, node, cacheConfig, globalConfig, listener.getLogger());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to prefetch files to " + c.getName(), e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.FINE, "Interrupted while prefetching files to " + c.getName(), e);
+                }
+            }
+        });
+    }
+
+    private void prefetch(Computer c, Node node, SlaveFileCache.Config cacheConfig,
+            CopyToSlaveBuildWrapper.DescriptorImpl globalConfig, PrintStream logger) throws IOException, InterruptedException {
+        FilePath rootPath = node.getRootPath();
+        if(rootPath == null) {
+            return;
+        }
+        FilePath scratchDir = rootPath.child(SCRATCH_DIRECTORY_NAME);
+        Set<String> prefetched = new HashSet<String>();
+
+        try {
+            for(AbstractProject<?,?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+                if(!c.isOnline() || !c.isIdle()) {
+                    logger.println("[copy-to-slave] The slave is busy, prefetching stopped.");
+                    return;
+                }
+                if(project.isDisabled() || !(project instanceof BuildableItemWithBuildWrappers) || !canRunOn(project, node)) {
+                    continue;
+                }
+                CopyToSlaveBuildWrapper wrapper = ((BuildableItemWithBuildWrappers) project).getBuildWrappersList().get(
+                        CopyToSlaveBuildWrapper.class);
+                if(wrapper == null) {
+                    continue;
+                }
+                FilePath root = wrapper.getRootFilePathOnMaster(new EnvVars());
+                String includes = wrapper.getIncludes();
+                String excludes = wrapper.getExcludes();
+                if(root == null || root.getRemote().contains("$")
+                        || (includes != null && includes.contains("$")) || (excludes != null && excludes.contains("$"))) {
+                    continue; // depends on the build
+                }
+                String key = root.getRemote() + '\n' + includes + '\n' + excludes + '\n' + wrapper.isIncludeAntExcludes();
+                if(!prefetched.add(key)) {
+                    continue;
+                }
+
+                TransferOptions options = new TransferOptions();
+                options.setCache(cacheConfig);
+                options.setCodec(TransferCodec.fromName(wrapper.getCodec(), globalConfig.getDefaultCodec()));
+                options.setCompressionLevel(globalConfig.getCompressionLevel());
+                options.setArchiveFormat(globalConfig.getArchiveFormat());
+                options.setThrottle(new Throttle(Collections.singletonList(
+                        Throttle.getPrefetchBucket(node.getNodeName(), globalConfig.getPrefetchBandwidthLimit() * 1024L))));
+
+                FilePath target = scratchDir.child(Util.getDigestOf(key));
+                logger.printf("[copy-to-slave] Prefetching '%s' from '%s' for %s.\n", includes, root.getRemote(), project.getFullName());
+                try {
+                    // not flattened, so that all the files get cached whatever the layout
+                    MyFilePath.copyRecursiveTo(root, includes, excludes, false, wrapper.isIncludeAntExcludes(), target, options);
+                } finally {
+                    target.deleteRecursive();
+                }
+            }
+        } finally {
+            if(scratchDir.exists()) {
+                scratchDir.deleteRecursive();
+            }
+        }
+    }
+
+    private static boolean canRunOn(AbstractProject<?,?> project, Node node) {
+        Label label = project.getAssignedLabel();
+        if(label == null) {
+            return node.getMode() == Node.Mode.NORMAL;
+        }
+        return label.contains(node);
+    }
+
+    private final static String SCRATCH_DIRECTORY_NAME = "copy-to-slave-prefetch";
+
+    private final static Logger LOGGER = Logger.getLogger(CachePrefetcher.class.getName());
+
+}
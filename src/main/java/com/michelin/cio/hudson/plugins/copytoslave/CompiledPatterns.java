@@ -0,0 +1,432 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * A set of Ant patterns compiled once for all, which matches paths the same
+ * way {@link SelectorUtils#matchPath(String, String)} does but much faster
+ * than trying each pattern in turn.
+ *
+ * <p>Common patterns get a dedicated structure:</p>
+ * <ul>
+ *   <li>{@code **}{@code /*.ext}: a set of extensions;</li>
+ *   <li>{@code **}{@code /*suffix}: a list of suffixes;</li>
+ *   <li>{@code **}{@code /name}: a set of file names;</li>
+ *   <li>{@code **}{@code /name/**}: a set of directory names;</li>
+ *   <li>{@code dir/sub/**} and {@code dir/file}: a trie of path segments.</li>
+ * </ul>
+ * <p>Other patterns are tokenized once and their segments compiled to
+ * regular expressions.</p>
+ *
+ * <p>Paths and patterns use {@link File#separatorChar} and are matched case
+ * sensitively, as with Ant's defaults. Instances are immutable and
+ * {@link #compile cached} by pattern list.</p>
+ */
+public class CompiledPatterns {
+
+    private final Set<String> extensions = new HashSet<String>();
+    private final List<String> suffixes = new ArrayList<String>();
+    private final Set<String> names = new HashSet<String>();
+    private final Set<String> dirNames = new HashSet<String>();
+    private final TrieNode trie = new TrieNode();
+    private final List<GenericPattern> others = new ArrayList<GenericPattern>();
+    /** {@code true} if some pattern starts with {@code **}. */
+    private boolean anyDepth;
+
+    private CompiledPatterns(List<String> patterns) {
+        for(String pattern : patterns) {
+            add(tokenize(pattern));
+        }
+    }
+
+    /**
+     * Returns the compiled form of the given patterns, compiling them only if
+     * they haven't been compiled yet.
+     */
+    public static CompiledPatterns compile(List<String> patterns) {
+        String key = patterns.toString();
+        CompiledPatterns compiled = CACHE.get(key);
+        if(compiled == null) {
+            compiled = new CompiledPatterns(patterns);
+            if(CACHE.size() >= MAX_CACHE_SIZE) {
+                CACHE.clear(); // patterns rarely change: no need for anything smarter
+            }
+            CACHE.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    private void add(String[] segments) {
+        if(segments.length > 0 && segments[0].equals(DOUBLE_STAR)) {
+            anyDepth = true;
+        }
+
+        if(segments.length == 2 && segments[0].equals(DOUBLE_STAR) && isLiteral(segments[1])) {
+            names.add(segments[1]);
+            return;
+        }
+        if(segments.length == 2 && segments[0].equals(DOUBLE_STAR)
+                && segments[1].startsWith("*") && isLiteral(segments[1].substring(1))) {
+            String suffix = segments[1].substring(1);
+            if(suffix.lastIndexOf('.') == 0 && suffix.length() > 1) {
+                extensions.add(suffix.substring(1));
+            }
+            else {
+                suffixes.add(suffix);
+            }
+            return;
+        }
+        if(segments.length == 3 && segments[0].equals(DOUBLE_STAR) && segments[2].equals(DOUBLE_STAR) && isLiteral(segments[1])) {
+            dirNames.add(segments[1]);
+            return;
+        }
+
+        int literals = 0;
+        while(literals < segments.length && isLiteral(segments[literals])) {
+            literals++;
+        }
+        if(literals > 0 && (literals == segments.length || (literals == segments.length - 1 && segments[literals].equals(DOUBLE_STAR)))) {
+            TrieNode node = trie;
+            for(int i = 0; i < literals; i++) {
+                node = node.child(segments[i], true);
+            }
+            if(literals == segments.length) {
+                node.exact = true;
+            }
+            else {
+                node.prefix = true;
+            }
+            return;
+        }
+
+        others.add(new GenericPattern(segments));
+    }
+
+    /**
+     * Tells if {@code path} (a file or a directory) matches one of the
+     * patterns.
+     */
+    public boolean matches(String path) {
+        String name = path.substring(path.lastIndexOf(File.separatorChar) + 1);
+        if(names.contains(name)) {
+            return true;
+        }
+        if(!extensions.isEmpty()) {
+            int dot = name.lastIndexOf('.');
+            if(dot >= 0 && extensions.contains(name.substring(dot + 1))) {
+                return true;
+            }
+        }
+        for(String suffix : suffixes) {
+            if(name.endsWith(suffix)) {
+                return true;
+            }
+        }
+
+        String[] segments = split(path);
+        if(!dirNames.isEmpty()) {
+            for(String segment : segments) {
+                if(dirNames.contains(segment)) {
+                    return true;
+                }
+            }
+        }
+        if(trie.matches(segments)) {
+            return true;
+        }
+        for(GenericPattern pattern : others) {
+            if(pattern.matches(segments, 0, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if some path below the directory {@code path} may match one of
+     * the patterns, cf. {@link SelectorUtils#matchPatternStart(String, String)}.
+     */
+    public boolean couldMatchBelow(String path) {
+        if(anyDepth || !names.isEmpty() || !extensions.isEmpty() || !suffixes.isEmpty() || !dirNames.isEmpty()) {
+            return true;
+        }
+        String[] segments = split(path);
+        if(trie.matchesStart(segments)) {
+            return true;
+        }
+        for(GenericPattern pattern : others) {
+            if(pattern.matchesStart(segments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if all the paths below the directory {@code path} match one of
+     * the patterns (e.g. because of a {@code dir/**} pattern).
+     */
+    public boolean matchesAllBelow(String path) {
+        String[] segments = split(path);
+        if(!dirNames.isEmpty()) {
+            for(String segment : segments) {
+                if(dirNames.contains(segment)) {
+                    return true;
+                }
+            }
+        }
+        if(trie.matchesAllBelow(segments)) {
+            return true;
+        }
+        for(GenericPattern pattern : others) {
+            if(pattern.matchesAllBelow(segments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a path or a pattern on {@link File#separatorChar}, ignoring empty
+     * segments as Ant does.
+     */
+    private static String[] split(String path) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        for(int i = 0; i <= path.length(); i++) {
+            if(i == path.length() || path.charAt(i) == File.separatorChar) {
+                if(i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    /**
+     * Splits a pattern, merging consecutive {@code **} segments.
+     */
+    private static String[] tokenize(String pattern) {
+        List<String> segments = new ArrayList<String>();
+        for(String segment : split(pattern)) {
+            if(segment.equals(DOUBLE_STAR) && !segments.isEmpty() && segments.get(segments.size() - 1).equals(DOUBLE_STAR)) {
+                continue;
+            }
+            segments.add(segment);
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static boolean isLiteral(String segment) {
+        return segment.indexOf('*') < 0 && segment.indexOf('?') < 0;
+    }
+
+    /**
+     * Trie of the literal patterns, optionally followed by {@code **}.
+     */
+    private static class TrieNode {
+
+        private Map<String, TrieNode> children;
+        /** A pattern ends here. */
+        boolean exact;
+        /** A pattern ends here with {@code **}. */
+        boolean prefix;
+
+        TrieNode child(String segment, boolean create) {
+            if(children == null) {
+                if(!create) {
+                    return null;
+                }
+                children = new HashMap<String, TrieNode>();
+            }
+            TrieNode child = children.get(segment);
+            if(child == null && create) {
+                child = new TrieNode();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        boolean matches(String[] segments) {
+            TrieNode node = this;
+            for(String segment : segments) {
+                if(node.prefix) {
+                    return true;
+                }
+                node = node.child(segment, false);
+                if(node == null) {
+                    return false;
+                }
+            }
+            return node.exact || node.prefix;
+        }
+
+        boolean matchesStart(String[] segments) {
+            TrieNode node = this;
+            for(String segment : segments) {
+                if(node.prefix) {
+                    return true;
+                }
+                node = node.child(segment, false);
+                if(node == null) {
+                    return false;
+                }
+            }
+            return node != this || node.children != null;
+        }
+
+        boolean matchesAllBelow(String[] segments) {
+            TrieNode node = this;
+            for(String segment : segments) {
+                if(node.prefix) {
+                    return true;
+                }
+                node = node.child(segment, false);
+                if(node == null) {
+                    return false;
+                }
+            }
+            return node.prefix;
+        }
+
+    }
+
+    /**
+     * Any other pattern: Its segments are compiled, then matched as Ant does.
+     */
+    private static class GenericPattern {
+
+        /** Compiled segments, {@code null} standing for {@code **}. */
+        private final Pattern[] segments;
+
+        GenericPattern(String[] segments) {
+            this.segments = new Pattern[segments.length];
+            for(int i = 0; i < segments.length; i++) {
+                if(!segments[i].equals(DOUBLE_STAR)) {
+                    this.segments[i] = toRegex(segments[i]);
+                }
+            }
+        }
+
+        private static Pattern toRegex(String segment) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for(char c : segment.toCharArray()) {
+                if(c == '*' || c == '?') {
+                    if(literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                }
+                else {
+                    literal.append(c);
+                }
+            }
+            if(literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+
+        boolean matches(String[] path, int p, int s) {
+            while(s < segments.length && p < path.length) {
+                if(segments[s] == null) {
+                    if(s == segments.length - 1) {
+                        return true;
+                    }
+                    for(int i = p; i <= path.length; i++) {
+                        if(matches(path, i, s + 1)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                if(!segments[s].matcher(path[p]).matches()) {
+                    return false;
+                }
+                s++;
+                p++;
+            }
+            if(p < path.length) {
+                return false;
+            }
+            for(; s < segments.length; s++) {
+                if(segments[s] != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matchesStart(String[] path) {
+            int s = 0;
+            for(String segment : path) {
+                if(s == segments.length) {
+                    return false;
+                }
+                if(segments[s] == null) {
+                    return true;
+                }
+                if(!segments[s].matcher(segment).matches()) {
+                    return false;
+                }
+                s++;
+            }
+            return true;
+        }
+
+        boolean matchesAllBelow(String[] path) {
+            if(segments.length < 2 || segments[segments.length - 1] != null) {
+                return false;
+            }
+            // the pattern without its trailing ** must match the directory
+            return new GenericPattern(this, segments.length - 1).matches(path, 0, 0);
+        }
+
+        private GenericPattern(GenericPattern pattern, int length) {
+            this.segments = new Pattern[length];
+            System.arraycopy(pattern.segments, 0, this.segments, 0, length);
+        }
+
+    }
+
+    private final static Map<String, CompiledPatterns> CACHE = new ConcurrentHashMap<String, CompiledPatterns>();
+    private final static int MAX_CACHE_SIZE = 256;
+
+    private final static String DOUBLE_STAR = "**";
+
+}
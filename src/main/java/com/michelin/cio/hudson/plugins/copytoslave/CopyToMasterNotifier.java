@@ -27,11 +27,14 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
+import hudson.model.Hudson;
 import hudson.model.Hudson.MasterComputer;
+import hudson.model.Node;
 import hudson.slaves.SlaveComputer;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -39,6 +42,7 @@ import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import org.apache.commons.lang.StringUtils;
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
@@ -54,14 +58,31 @@ public class CopyToMasterNotifier extends Notifier {
     private final boolean overrideDestinationFolder;
     private final String destinationFolder;
     private final boolean runAfterResultFinalised;
+    private final boolean flatten;
+    private final boolean includeAntExcludes;
+    private final boolean deltaSync;
+    private final boolean compareChecksums;
+    private final String codec;
+    private final int streams;
+    private final boolean resumable;
+    private final boolean liveCopy;
 
     @DataBoundConstructor
-    public CopyToMasterNotifier(String includes, String excludes, boolean overrideDestinationFolder, String destinationFolder, boolean runAfterResultFinalised) {
+    public CopyToMasterNotifier(String includes, String excludes, boolean overrideDestinationFolder, String destinationFolder, boolean runAfterResultFinalised,
+            boolean flatten, boolean includeAntExcludes, boolean deltaSync, boolean compareChecksums, String codec, int streams, boolean resumable, boolean liveCopy) {
         this.includes = includes;
         this.excludes = excludes;
         this.overrideDestinationFolder = overrideDestinationFolder;
         this.destinationFolder = destinationFolder;
         this.runAfterResultFinalised = runAfterResultFinalised;
+        this.flatten = flatten;
+        this.includeAntExcludes = includeAntExcludes;
+        this.deltaSync = deltaSync;
+        this.compareChecksums = compareChecksums;
+        this.codec = Util.fixEmpty(codec);
+        this.streams = streams;
+        this.resumable = resumable;
+        this.liveCopy = liveCopy;
     }
 
     @Override
@@ -75,14 +96,7 @@ public class CopyToMasterNotifier extends Notifier {
         env.overrideAll(build.getBuildVariables());
 
         if(Computer.currentComputer() instanceof SlaveComputer) {
-            FilePath destinationFilePath;
-            if(isOverrideDestinationFolder() && StringUtils.isNotBlank(getDestinationFolder())) {
-                destinationFilePath = new FilePath(new File(env.expand(getDestinationFolder())));
-            }
-            else {
-                destinationFilePath = CopyToSlaveUtils.getProjectWorkspaceOnMaster(build, listener.getLogger());
-            }
-
+            FilePath destinationFilePath = getDestinationFilePath(build, env, listener.getLogger());
             FilePath projectWorkspaceOnSlave = build.getProject().getWorkspace();
 
             String includes = env.expand(getIncludes());
@@ -92,7 +106,33 @@ public class CopyToMasterNotifier extends Notifier {
                     includes, StringUtils.isBlank(excludes) ? "nothing" : '\'' + excludes + '\'', projectWorkspaceOnSlave.toURI(),
                     Computer.currentComputer().getNode(), destinationFilePath.toURI());
 
-            projectWorkspaceOnSlave.copyRecursiveTo(includes, excludes, destinationFilePath);
+            TransferOptions options = createTransferOptions(Computer.currentComputer().getNode());
+            TransferStatistics liveStatistics = LiveCopier.stop(build);
+            if(liveStatistics != null) {
+                listener.getLogger().printf("[copy-to-slave] %d files have already been copied during the build, copying the remaining ones.\n",
+                        liveStatistics.getFilesSent());
+                options.setDeltaSync(true); // don't send again what the live copy already did
+                options.getStatistics().add(liveStatistics);
+            }
+
+            TransferScheduler.Slot slot = TransferScheduler.get().acquire(
+                    build.getProject().getFullName(), Computer.currentComputer().getName(), listener.getLogger());
+            try {
+                MyFilePath.copyRecursiveTo(
+                        projectWorkspaceOnSlave,
+                        includes,
+                        excludes,
+                        isFlatten(), isIncludeAntExcludes(), destinationFilePath, options);
+            } finally {
+                slot.release();
+            }
+
+            options.getStatistics().setDescription(String.format("'%s' from '%s' to the master",
+                    includes, Computer.currentComputer().getNode().getDisplayName()));
+            TransferStatisticsAction.record(build, Computer.currentComputer().getName(), options.getStatistics(), listener.getLogger());
+            if(needsToRunAfterFinalized()) {
+                build.save(); // the build has already been saved for the last time
+            }
         }
         else if(Computer.currentComputer() instanceof MasterComputer) {
             listener.getLogger().println(
@@ -102,6 +142,32 @@ public class CopyToMasterNotifier extends Notifier {
         return true;
     }
 
+    FilePath getDestinationFilePath(AbstractBuild build, EnvVars env, PrintStream logger) {
+        if(isOverrideDestinationFolder() && StringUtils.isNotBlank(getDestinationFolder())) {
+            return new FilePath(new File(env.expand(getDestinationFolder())));
+        }
+        else {
+            return CopyToSlaveUtils.getProjectWorkspaceOnMaster(build, logger);
+        }
+    }
+
+    TransferOptions createTransferOptions(Node node) {
+        CopyToSlaveBuildWrapper.DescriptorImpl globalConfig = getDescriptor().getGlobalConfig();
+        TransferOptions options = new TransferOptions();
+        options.setDeltaSync(isDeltaSync());
+        options.setCompareChecksums(isCompareChecksums());
+        options.setCodec(TransferCodec.fromName(getCodec(), globalConfig.getDefaultCodec()));
+        options.setCompressionLevel(globalConfig.getCompressionLevel());
+        options.setArchiveFormat(globalConfig.getArchiveFormat());
+        options.setStreams(Math.min(getStreams(), globalConfig.getMaxStreams()));
+        options.setThrottle(globalConfig.getThrottle(node));
+        options.setResumable(isResumable());
+        options.setSegmentSize(globalConfig.getSegmentSize() * 1024L * 1024L);
+        options.setRetries(globalConfig.getTransferRetries());
+        options.setBlockDeltaThreshold(globalConfig.getBlockDeltaThreshold() * 1024L * 1024L);
+        return options;
+    }
+
     public String getIncludes() {
         return includes;
     }
@@ -121,6 +187,58 @@ public class CopyToMasterNotifier extends Notifier {
     public boolean getRunAfterResultFinalised() {
         return runAfterResultFinalised;
     }
+
+    public boolean isFlatten() {
+        return flatten;
+    }
+
+    public boolean isIncludeAntExcludes() {
+        return includeAntExcludes;
+    }
+
+    public boolean isDeltaSync() {
+        return deltaSync;
+    }
+
+    public boolean isCompareChecksums() {
+        return compareChecksums;
+    }
+
+    /**
+     * Name of the {@link TransferCodec} to use, or {@code null} to use the
+     * default one.
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Number of parallel streams the copied files are spread over.
+     */
+    public int getStreams() {
+        return streams > 0 ? streams : 1;
+    }
+
+    /**
+     * If {@code true}, the copy is split into segments which are committed
+     * one after the other, cf. {@link ResumableTransfer}.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * If {@code true}, the files are copied while the build is running, as
+     * soon as they stop changing, cf. {@link LiveCopier}.
+     */
+    public boolean isLiveCopy() {
+        return liveCopy;
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl) super.getDescriptor();
+    }
     
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.NONE;
@@ -143,6 +261,22 @@ public class CopyToMasterNotifier extends Notifier {
             return true;
         }
 
+        /**
+         * The transfer settings (default codec, compression level, maximum
+         * number of streams) are shared with {@link CopyToSlaveBuildWrapper}.
+         */
+        public CopyToSlaveBuildWrapper.DescriptorImpl getGlobalConfig() {
+            return Hudson.getInstance().getDescriptorByType(CopyToSlaveBuildWrapper.DescriptorImpl.class);
+        }
+
+        public TransferCodec getDefaultCodec() {
+            return getGlobalConfig().getDefaultCodec();
+        }
+
+        public TransferCodec[] getCodecs() {
+            return TransferCodec.values();
+        }
+
     }
 
 }
@@ -27,6 +27,7 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Build;
@@ -34,9 +35,23 @@ import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.Hudson.MasterComputer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.IOException2;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
@@ -55,6 +70,9 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
     public final static String RELATIVE_TO_USERCONTENT = "userContent";
     public final static String RELATIVE_TO_WORKSPACE = "workspace";
 
+    /** Copies started by {@link #preCheckout}, to be completed by {@link #setUp}. */
+    private final static Map<AbstractBuild<?, ?>, Future<FileManifest>> PENDING_COPIES = new WeakHashMap<AbstractBuild<?, ?>, Future<FileManifest>>();
+
     private final String includes;
     private final String excludes;
     private final boolean flatten;  // HUDSON-8220
@@ -63,13 +81,28 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
     private final boolean hudsonHomeRelative; // HUDSON-7021 (as of 2011/03/01, replaced by relativeTo
                                               // and kept for backward compatibility)
     private final String relativeTo;
+    private final boolean deltaSync;
+    private final boolean compareChecksums;
+    private final String codec;
+    private final int streams;
+    private final boolean resumable;
+    private final boolean overlapCheckout;
+    private final String cleanUp;
 
     @DataBoundConstructor
-    public CopyToSlaveBuildWrapper(String includes, String excludes, boolean flatten, boolean includeAntExcludes, String relativeTo, boolean hudsonHomeRelative) {
+    public CopyToSlaveBuildWrapper(String includes, String excludes, boolean flatten, boolean includeAntExcludes, String relativeTo, boolean hudsonHomeRelative,
+            boolean deltaSync, boolean compareChecksums, String codec, int streams, boolean resumable, boolean overlapCheckout, String cleanUp) {
         this.includes = includes;
         this.excludes = excludes;
         this.flatten = flatten;
         this.includeAntExcludes = includeAntExcludes;
+        this.deltaSync = deltaSync;
+        this.compareChecksums = compareChecksums;
+        this.codec = Util.fixEmpty(codec);
+        this.streams = streams;
+        this.resumable = resumable;
+        this.overlapCheckout = overlapCheckout;
+        this.cleanUp = Util.fixEmpty(cleanUp);
         if(hudsonHomeRelative) { // backward compatibility
             this.relativeTo = RELATIVE_TO_HOME;
         }
@@ -87,6 +120,36 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
         return (DescriptorImpl) super.getDescriptor();
     }
 
+    @Override
+    public void preCheckout(AbstractBuild build, Launcher launcher, final BuildListener listener) throws IOException, InterruptedException {
+        if(!isOverlapCheckout() || StringUtils.isBlank(getIncludes()) || isNothingToCopy()) {
+            return;
+        }
+
+        // the environment and the current computer are only available from the executor thread
+        final EnvVars env = build.getEnvironment(listener);
+        env.overrideAll(build.getBuildVariables());
+        final Computer computer = Computer.currentComputer();
+        final AbstractBuild<?, ?> b = build;
+
+        final FilePath stagingDir = getStagingDir(build.getWorkspace());
+        stagingDir.deleteRecursive(); // left by a build which didn't end properly
+        stagingDir.mkdirs();
+        if(isDeltaSync() || getDescriptor().getLinkStrategy() == FileLinker.Strategy.SKIP_UNCHANGED) {
+            seedStagingDir(build.getWorkspace(), stagingDir, env);
+        }
+
+        listener.getLogger().printf("[copy-to-slave] Starting the copy into '%s' while checking out.\n", stagingDir.toURI());
+        Future<FileManifest> copy = Computer.threadPoolForRemoting.submit(new Callable<FileManifest>() {
+            public FileManifest call() throws IOException, InterruptedException {
+                return copy(b, listener, env, computer, stagingDir, true);
+            }
+        });
+        synchronized(PENDING_COPIES) {
+            PENDING_COPIES.put(build, copy);
+        }
+    }
+
     @Override
     public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
         EnvVars env = build.getEnvironment(listener);
@@ -98,48 +161,53 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
             return null;
         }
 
-        if(Computer.currentComputer() instanceof MasterComputer && RELATIVE_TO_WORKSPACE.equals(relativeTo)) {
+        Future<FileManifest> pendingCopy;
+        synchronized(PENDING_COPIES) {
+            pendingCopy = PENDING_COPIES.remove(build);
+        }
+
+        final boolean copied = !isNothingToCopy();
+        FileManifest manifest = null;
+        if(!copied) {
             listener.getLogger().println(
                     "[copy-to-slave] Trying to copy files from the workspace on the master to the same workspace on the same master: No copy will take place.");
         }
+        else if(pendingCopy != null) {
+            listener.getLogger().println("[copy-to-slave] Waiting for the copy started while checking out.");
+            FilePath stagingDir = getStagingDir(build.getWorkspace());
+            try {
+                manifest = pendingCopy.get();
+            } catch (ExecutionException e) {
+                stagingDir.deleteRecursive();
+                throw new IOException2("Failed to copy files into " + stagingDir, e.getCause());
+            } catch (InterruptedException e) {
+                // the build has been aborted: PendingCopyCanceller can't find this copy anymore
+                pendingCopy.cancel(true);
+                stagingDir.deleteRecursive();
+                throw e;
+            }
+            // the files the staging directory has been seeded with, but which are not part of the copy, are left out
+            MyFilePath.moveContentsTo(stagingDir, build.getWorkspace(), manifest.getEntriesByTargetPath().keySet());
+        }
         else {
-            FilePath rootFilePathOnMaster;
+            manifest = copy(build, listener, env, Computer.currentComputer(), build.getWorkspace(), false);
+        }
 
-            if(RELATIVE_TO_WORKSPACE.equals(relativeTo)) {
-                rootFilePathOnMaster = CopyToSlaveUtils.getProjectWorkspaceOnMaster(build, listener.getLogger());
-            }
-            else if(getDescriptor().isSomewhereElseEnabled() && RELATIVE_TO_SOMEWHERE_ELSE.equals(relativeTo)) {
-                rootFilePathOnMaster = new FilePath(
-                        Hudson.getInstance().getChannel(),
-                        env.expand(getDescriptor().getSomewhereElsePath()));
+        if(manifest != null && getCleanUp() != TargetManifest.CleanUp.NEVER) {
+            int stale = TargetManifest.record(build.getWorkspace(), manifest);
+            if(stale > 0) {
+                listener.getLogger().printf("[copy-to-slave] Deleted %d files left by the previous copy.\n", stale);
             }
-            else if(getDescriptor().isRelativeToHomeEnabled() && RELATIVE_TO_HOME.equals(relativeTo)) { // JENKINS-12281
-                rootFilePathOnMaster = Hudson.getInstance().getRootPath();
-            }
-            else {
-                rootFilePathOnMaster = Hudson.getInstance().getRootPath().child("userContent");
-            }
-
-            FilePath projectWorkspaceOnSlave = build.getWorkspace();
-
-            String includes = env.expand(getIncludes());
-            String excludes = env.expand(getExcludes());
-
-            listener.getLogger().printf("[copy-to-slave] Copying '%s', excluding %s, from '%s' on the master to '%s' on '%s'.\n",
-                    includes, StringUtils.isBlank(excludes) ? "nothing" : '\'' + excludes + '\'', rootFilePathOnMaster.toURI(),
-                    projectWorkspaceOnSlave.toURI(), Computer.currentComputer().getNode().getDisplayName());
-
-            // HUDSON-7999
-            MyFilePath.copyRecursiveTo(
-                    rootFilePathOnMaster,
-                    includes,
-                    excludes,
-                    isFlatten(), isIncludeAntExcludes(), projectWorkspaceOnSlave);
         }
 
         return new Environment() {
             @Override
             public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+                if(copied && getCleanUp() == TargetManifest.CleanUp.AFTER_BUILD) {
+                    int deleted = TargetManifest.cleanUp(build.getWorkspace());
+                    listener.getLogger().printf("[copy-to-slave] Deleted %d copied files from '%s'.\n",
+                            deleted, build.getWorkspace().toURI());
+                }
                 // we need to return true so that the build can go on
                 return true;
             }
@@ -151,6 +219,152 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
         return setUp(build, launcher, listener);
     }
 
+    /**
+     * Tells if the files would be copied onto themselves.
+     */
+    private boolean isNothingToCopy() {
+        return Computer.currentComputer() instanceof MasterComputer && RELATIVE_TO_WORKSPACE.equals(relativeTo);
+    }
+
+    /**
+     * Copies the files from the master to {@code target}, which is on the
+     * node of {@code computer}.
+     *
+     * @param staged {@code true} if {@code target} is the staging directory
+     *        of {@link #preCheckout}, which other copies can't get the files
+     *        from since it is emptied once the checkout is over
+     * @return the manifest of the copied files, to be recorded as a
+     *         {@link TargetManifest}, or {@code null} if the copied files are
+     *         never cleaned up and the copy is not staged
+     */
+    private FileManifest copy(AbstractBuild<?, ?> build, BuildListener listener, EnvVars env, Computer computer, FilePath target,
+            boolean staged) throws IOException, InterruptedException {
+        FilePath rootFilePathOnMaster;
+        if(RELATIVE_TO_WORKSPACE.equals(relativeTo)) {
+            rootFilePathOnMaster = CopyToSlaveUtils.getProjectWorkspaceOnMaster(build, listener.getLogger());
+        }
+        else {
+            rootFilePathOnMaster = getRootFilePathOnMaster(env);
+        }
+
+        String includes = env.expand(getIncludes());
+        String excludes = env.expand(getExcludes());
+
+        listener.getLogger().printf("[copy-to-slave] Copying '%s', excluding %s, from '%s' on the master to '%s' on '%s'.\n",
+                includes, StringUtils.isBlank(excludes) ? "nothing" : '\'' + excludes + '\'', rootFilePathOnMaster.toURI(),
+                target.toURI(), computer.getNode().getDisplayName());
+
+        TransferOptions options = new TransferOptions();
+        options.setDeltaSync(isDeltaSync());
+        options.setCompareChecksums(isCompareChecksums());
+        options.setCache(getDescriptor().getSlaveCacheConfig(computer.getNode()));
+        options.setCodec(TransferCodec.fromName(getCodec(), getDescriptor().getDefaultCodec()));
+        options.setCompressionLevel(getDescriptor().getCompressionLevel());
+        options.setArchiveFormat(getDescriptor().getArchiveFormat());
+        options.setStreams(Math.min(getStreams(), getDescriptor().getMaxStreams()));
+        if(getDescriptor().isBundleCacheEnabled()) {
+            options.setBundleCacheMaxSize(getDescriptor().getBundleCacheMaxSize() * 1024L * 1024L);
+        }
+        options.setThrottle(getDescriptor().getThrottle(computer.getNode()));
+        options.setResumable(isResumable());
+        options.setSegmentSize(getDescriptor().getSegmentSize() * 1024L * 1024L);
+        options.setRetries(getDescriptor().getTransferRetries());
+        options.setBlockDeltaThreshold(getDescriptor().getBlockDeltaThreshold() * 1024L * 1024L);
+        options.setDetectSharedFileSystem(getDescriptor().isSharedFileSystemEnabled());
+        options.setLinkStrategy(getDescriptor().getLinkStrategy());
+        options.setUseTargetManifest(getCleanUp() != TargetManifest.CleanUp.NEVER);
+
+        // identical copies to the same slave (e.g. matrix configurations) get the files from the first one
+        TransferCoalescer.Ticket ticket = staged ? null : TransferCoalescer.get().join(computer.getName(),
+                rootFilePathOnMaster.getRemote() + '\n' + includes + '\n' + excludes + '\n' + isFlatten() + '\n' + isIncludeAntExcludes(),
+                target);
+        boolean succeeded = false;
+        TransferScheduler.Slot slot = null;
+        try {
+            if(ticket != null && !ticket.isLeader() && ticket.await(listener.getLogger())) {
+                listener.getLogger().printf("[copy-to-slave] Copying the files already copied to '%s' on the same node.\n",
+                        ticket.getTarget().getRemote());
+                slot = TransferScheduler.get().acquire(build.getProject().getFullName(), computer.getName(), listener.getLogger());
+                TransferCoalescer.copyFrom(
+                        ticket.getTarget(),
+                        rootFilePathOnMaster,
+                        includes,
+                        excludes,
+                        isFlatten(), isIncludeAntExcludes(), target, options);
+            }
+            else {
+                slot = TransferScheduler.get().acquire(build.getProject().getFullName(), computer.getName(), listener.getLogger());
+                // HUDSON-7999
+                MyFilePath.copyRecursiveTo(
+                        rootFilePathOnMaster,
+                        includes,
+                        excludes,
+                        isFlatten(), isIncludeAntExcludes(), target, options);
+            }
+            succeeded = true;
+        } finally {
+            if(slot != null) {
+                slot.release();
+            }
+            if(ticket != null && ticket.isLeader()) {
+                ticket.done(succeeded);
+            }
+        }
+
+        options.getStatistics().setDescription(String.format("'%s' from the master to '%s'",
+                includes, computer.getNode().getDisplayName()));
+        TransferStatisticsAction.record(build, computer.getName(), options.getStatistics(), listener.getLogger());
+
+        if(getCleanUp() == TargetManifest.CleanUp.NEVER && !staged) {
+            return null;
+        }
+        // the source tree is on the master: its scan is indexed, cf. SourceTreeIndex
+        return MyFilePath.buildManifest(rootFilePathOnMaster, includes, excludes, isIncludeAntExcludes(), isFlatten(), false, 0);
+    }
+
+    /**
+     * Returns the directory of the master the files are copied from, or
+     * {@code null} if it's the workspace of the project on the master, which
+     * depends on the build.
+     */
+    FilePath getRootFilePathOnMaster(EnvVars env) {
+        if(RELATIVE_TO_WORKSPACE.equals(relativeTo)) {
+            return null;
+        }
+        else if(getDescriptor().isSomewhereElseEnabled() && RELATIVE_TO_SOMEWHERE_ELSE.equals(relativeTo)) {
+            return new FilePath(
+                    Hudson.getInstance().getChannel(),
+                    env.expand(getDescriptor().getSomewhereElsePath()));
+        }
+        else if(getDescriptor().isRelativeToHomeEnabled() && RELATIVE_TO_HOME.equals(relativeTo)) { // JENKINS-12281
+            return Hudson.getInstance().getRootPath();
+        }
+        else {
+            return Hudson.getInstance().getRootPath().child("userContent");
+        }
+    }
+
+    /**
+     * Directory, next to the workspace, the files are copied to while checking
+     * out, cf. {@link #isOverlapCheckout()}.
+     */
+    private static FilePath getStagingDir(FilePath workspace) {
+        return workspace.getParent().child(workspace.getName() + "@copy-to-slave");
+    }
+
+    /**
+     * Clones (or copies) into {@code stagingDir} the files of the workspace
+     * which match the patterns of the copy, as left by the previous build, so
+     * that only new or modified files are sent.
+     */
+    private void seedStagingDir(FilePath workspace, FilePath stagingDir, EnvVars env) throws IOException, InterruptedException {
+        TransferOptions options = new TransferOptions();
+        options.setLinkStrategy(FileLinker.Strategy.REFLINK);
+        // the files of the workspace already have their target paths
+        stagingDir.act(new LocalCopyEngine(workspace.getRemote(), env.expand(getIncludes()), env.expand(getExcludes()),
+                isIncludeAntExcludes(), false, options));
+    }
+
     public String getIncludes() {
         return includes;
     }
@@ -177,16 +391,129 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
         return flatten;
     }
 
+    public boolean isDeltaSync() {
+        return deltaSync;
+    }
+
+    public boolean isCompareChecksums() {
+        return compareChecksums;
+    }
+
+    /**
+     * Name of the {@link TransferCodec} to use, or {@code null} to use the
+     * default one.
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Number of parallel streams the copied files are spread over.
+     */
+    public int getStreams() {
+        return streams > 0 ? streams : 1;
+    }
+
+    /**
+     * If {@code true}, the copy is split into segments which are committed
+     * one after the other, cf. {@link ResumableTransfer}.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * If {@code true}, the copy starts before the checkout, into a staging
+     * directory whose content is moved into the workspace in {@link #setUp}.
+     * The staging directory is seeded with the files of the workspace the copy
+     * would overwrite, for delta sync to apply.
+     */
+    public boolean isOverlapCheckout() {
+        return overlapCheckout;
+    }
+
+    /**
+     * When the copied files are deleted from the workspace, cf.
+     * {@link TargetManifest}.
+     */
+    public TargetManifest.CleanUp getCleanUp() {
+        return TargetManifest.CleanUp.fromName(cleanUp, TargetManifest.CleanUp.NEVER);
+    }
+
+    /**
+     * Cancels the copies started by {@link #preCheckout} for the builds which
+     * never reached {@link #setUp} (e.g. because the checkout failed), and
+     * deletes their staging directory.
+     */
+    @Extension
+    public static class PendingCopyCanceller extends RunListener<AbstractBuild> {
+
+        public PendingCopyCanceller() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            Future<FileManifest> pendingCopy;
+            synchronized(PENDING_COPIES) {
+                pendingCopy = PENDING_COPIES.remove(build);
+            }
+            if(pendingCopy == null) {
+                return;
+            }
+
+            pendingCopy.cancel(true);
+            FilePath workspace = build.getWorkspace();
+            if(workspace == null) {
+                return;
+            }
+            FilePath stagingDir = getStagingDir(workspace);
+            try {
+                stagingDir.deleteRecursive();
+                listener.getLogger().printf("[copy-to-slave] Cancelled the copy started while checking out and deleted '%s'.\n",
+                        stagingDir.toURI());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete " + stagingDir, e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Interrupted while deleting " + stagingDir, e);
+            }
+        }
+
+    }
+
     @Extension
     public static class DescriptorImpl extends BuildWrapperDescriptor {
 
         private boolean relativeToHomeEnabled; // JENKINS-12281
         private boolean somewhereElseEnabled;
         private String somewhereElsePath;
+        private boolean slaveCacheEnabled;
+        private int slaveCacheMaxSize = DEFAULT_SLAVE_CACHE_MAX_SIZE;
+        private String defaultCodec;
+        private int compressionLevel = TransferCodec.DEFAULT_LEVEL;
+        private String archiveFormat;
+        private int maxStreams = DEFAULT_MAX_STREAMS;
+        private boolean bundleCacheEnabled;
+        private int bundleCacheMaxSize = DEFAULT_BUNDLE_CACHE_MAX_SIZE;
+        private int maxTransfers;
+        private int maxTransfersPerNode;
+        private String schedulingPolicy;
+        private int bandwidthLimit;
+        private String nodeBandwidthLimits;
+        private int segmentSize = DEFAULT_SEGMENT_SIZE;
+        private int transferRetries = TransferOptions.DEFAULT_RETRIES;
+        private int blockDeltaThreshold;
+        private int liveCopyInterval = DEFAULT_LIVE_COPY_INTERVAL;
+        private int liveCopyQuietPeriod = DEFAULT_LIVE_COPY_QUIET_PERIOD;
+        private boolean sharedFileSystemEnabled;
+        private String linkStrategy;
+        private boolean prefetchEnabled;
+        private int prefetchBandwidthLimit = DEFAULT_PREFETCH_BANDWIDTH_LIMIT;
 
         public DescriptorImpl() {
             super(CopyToSlaveBuildWrapper.class);
             load();
+            configureScheduler();
         }
 
         @Override
@@ -202,6 +529,64 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
                     somewhereElseEnabled = false;
                 }
 
+                slaveCacheEnabled = req.getSubmittedForm().getBoolean("slaveCacheEnabled");
+                slaveCacheMaxSize = req.getSubmittedForm().optInt("slaveCacheMaxSize", DEFAULT_SLAVE_CACHE_MAX_SIZE);
+                if(slaveCacheMaxSize <= 0) {
+                    slaveCacheMaxSize = DEFAULT_SLAVE_CACHE_MAX_SIZE;
+                }
+
+                defaultCodec = TransferCodec.fromName(req.getSubmittedForm().optString("defaultCodec"), TransferCodec.GZIP).name();
+                compressionLevel = req.getSubmittedForm().optInt("compressionLevel", TransferCodec.DEFAULT_LEVEL);
+                if(compressionLevel < 1 || compressionLevel > 9) {
+                    compressionLevel = TransferCodec.DEFAULT_LEVEL;
+                }
+                archiveFormat = ArchiveFormat.fromName(req.getSubmittedForm().optString("archiveFormat"), ArchiveFormat.TAR).name();
+
+                maxStreams = req.getSubmittedForm().optInt("maxStreams", DEFAULT_MAX_STREAMS);
+                if(maxStreams < 1) {
+                    maxStreams = 1;
+                }
+
+                bundleCacheEnabled = req.getSubmittedForm().getBoolean("bundleCacheEnabled");
+                bundleCacheMaxSize = req.getSubmittedForm().optInt("bundleCacheMaxSize", DEFAULT_BUNDLE_CACHE_MAX_SIZE);
+                if(bundleCacheMaxSize <= 0) {
+                    bundleCacheMaxSize = DEFAULT_BUNDLE_CACHE_MAX_SIZE;
+                }
+
+                prefetchEnabled = req.getSubmittedForm().optBoolean("prefetchEnabled");
+                prefetchBandwidthLimit = req.getSubmittedForm().optInt("prefetchBandwidthLimit", DEFAULT_PREFETCH_BANDWIDTH_LIMIT);
+                if(prefetchBandwidthLimit <= 0) {
+                    prefetchBandwidthLimit = DEFAULT_PREFETCH_BANDWIDTH_LIMIT;
+                }
+
+                sharedFileSystemEnabled = req.getSubmittedForm().getBoolean("sharedFileSystemEnabled");
+                linkStrategy = getLinkStrategy(req.getSubmittedForm().optString("linkStrategy")).name();
+
+                maxTransfers = Math.max(0, req.getSubmittedForm().optInt("maxTransfers", 0));
+                maxTransfersPerNode = Math.max(0, req.getSubmittedForm().optInt("maxTransfersPerNode", 0));
+                schedulingPolicy = getSchedulingPolicy(req.getSubmittedForm().optString("schedulingPolicy")).name();
+                configureScheduler();
+
+                bandwidthLimit = Math.max(0, req.getSubmittedForm().optInt("bandwidthLimit", 0));
+                nodeBandwidthLimits = Util.fixEmptyAndTrim(req.getSubmittedForm().optString("nodeBandwidthLimits"));
+
+                segmentSize = req.getSubmittedForm().optInt("segmentSize", DEFAULT_SEGMENT_SIZE);
+                if(segmentSize <= 0) {
+                    segmentSize = DEFAULT_SEGMENT_SIZE;
+                }
+                transferRetries = Math.max(0, req.getSubmittedForm().optInt("transferRetries", TransferOptions.DEFAULT_RETRIES));
+
+                blockDeltaThreshold = Math.max(0, req.getSubmittedForm().optInt("blockDeltaThreshold", 0));
+
+                liveCopyInterval = req.getSubmittedForm().optInt("liveCopyInterval", DEFAULT_LIVE_COPY_INTERVAL);
+                if(liveCopyInterval <= 0) {
+                    liveCopyInterval = DEFAULT_LIVE_COPY_INTERVAL;
+                }
+                liveCopyQuietPeriod = req.getSubmittedForm().optInt("liveCopyQuietPeriod", DEFAULT_LIVE_COPY_QUIET_PERIOD);
+                if(liveCopyQuietPeriod <= 0) {
+                    liveCopyQuietPeriod = DEFAULT_LIVE_COPY_QUIET_PERIOD;
+                }
+
                 save();
 
                 return true;
@@ -233,6 +618,276 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
             return somewhereElseEnabled;
         }
 
+        public boolean isSlaveCacheEnabled() {
+            return slaveCacheEnabled;
+        }
+
+        /**
+         * Maximum size of the file cache of each slave, in MB.
+         */
+        public int getSlaveCacheMaxSize() {
+            return slaveCacheMaxSize > 0 ? slaveCacheMaxSize : DEFAULT_SLAVE_CACHE_MAX_SIZE;
+        }
+
+        /**
+         * If {@code true}, the file caches of the slaves are filled as soon as
+         * they come online, cf. {@link CachePrefetcher}.
+         */
+        public boolean isPrefetchEnabled() {
+            return prefetchEnabled;
+        }
+
+        /**
+         * Maximum bandwidth used to fill the cache of a slave, in KB/s.
+         */
+        public int getPrefetchBandwidthLimit() {
+            return prefetchBandwidthLimit > 0 ? prefetchBandwidthLimit : DEFAULT_PREFETCH_BANDWIDTH_LIMIT;
+        }
+
+        /**
+         * Codec used by the jobs which don't define their own one.
+         */
+        public TransferCodec getDefaultCodec() {
+            return TransferCodec.fromName(defaultCodec, TransferCodec.GZIP);
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        /**
+         * Maximum number of parallel streams a single copy can use, whatever
+         * the configuration of the job.
+         */
+        public int getMaxStreams() {
+            return maxStreams > 0 ? maxStreams : DEFAULT_MAX_STREAMS;
+        }
+
+        public boolean isBundleCacheEnabled() {
+            return bundleCacheEnabled;
+        }
+
+        /**
+         * Maximum size of the cache of archives on the master, in MB.
+         */
+        public int getBundleCacheMaxSize() {
+            return bundleCacheMaxSize > 0 ? bundleCacheMaxSize : DEFAULT_BUNDLE_CACHE_MAX_SIZE;
+        }
+
+        public TransferCodec[] getCodecs() {
+            return TransferCodec.values();
+        }
+
+        /**
+         * Format of the archives sent from a node to another one.
+         */
+        public ArchiveFormat getArchiveFormat() {
+            return ArchiveFormat.fromName(archiveFormat, ArchiveFormat.TAR);
+        }
+
+        public ArchiveFormat[] getArchiveFormats() {
+            return ArchiveFormat.values();
+        }
+
+        public TargetManifest.CleanUp[] getCleanUpModes() {
+            return TargetManifest.CleanUp.values();
+        }
+
+        /**
+         * If {@code true}, slaves which see the source directory of a copy at
+         * the same path as the master copy the files themselves, cf.
+         * {@link SharedFileSystem}.
+         */
+        public boolean isSharedFileSystemEnabled() {
+            return sharedFileSystemEnabled;
+        }
+
+        /**
+         * How slaves create the files they copy from a shared directory.
+         */
+        public FileLinker.Strategy getLinkStrategy() {
+            return getLinkStrategy(linkStrategy);
+        }
+
+        public FileLinker.Strategy[] getLinkStrategies() {
+            return FileLinker.Strategy.values();
+        }
+
+        private static FileLinker.Strategy getLinkStrategy(String name) {
+            if(StringUtils.isBlank(name)) {
+                return FileLinker.Strategy.COPY;
+            }
+            try {
+                return FileLinker.Strategy.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return FileLinker.Strategy.COPY;
+            }
+        }
+
+        /**
+         * Maximum number of copies running at the same time on the whole
+         * instance, {@code 0} for no limit.
+         */
+        public int getMaxTransfers() {
+            return maxTransfers;
+        }
+
+        /**
+         * Maximum number of copies running at the same time to or from a
+         * single node, {@code 0} for no limit.
+         */
+        public int getMaxTransfersPerNode() {
+            return maxTransfersPerNode;
+        }
+
+        public TransferScheduler.Policy getSchedulingPolicy() {
+            return getSchedulingPolicy(schedulingPolicy);
+        }
+
+        public TransferScheduler.Policy[] getSchedulingPolicies() {
+            return TransferScheduler.Policy.values();
+        }
+
+        private static TransferScheduler.Policy getSchedulingPolicy(String name) {
+            if(StringUtils.isBlank(name)) {
+                return TransferScheduler.Policy.FIFO;
+            }
+            try {
+                return TransferScheduler.Policy.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return TransferScheduler.Policy.FIFO;
+            }
+        }
+
+        /**
+         * Size of the segments of resumable copies, in MB.
+         */
+        public int getSegmentSize() {
+            return segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+        }
+
+        /**
+         * Number of times a segment of a resumable copy is sent again when it
+         * fails.
+         */
+        public int getTransferRetries() {
+            return transferRetries;
+        }
+
+        /**
+         * Size, in MB, from which files which already exist on the target node
+         * are sent as deltas, {@code 0} to never send deltas.
+         */
+        public int getBlockDeltaThreshold() {
+            return blockDeltaThreshold;
+        }
+
+        /**
+         * Interval, in seconds, between two rounds of the live copy of files
+         * back to the master, cf. {@link LiveCopier}.
+         */
+        public int getLiveCopyInterval() {
+            return liveCopyInterval > 0 ? liveCopyInterval : DEFAULT_LIVE_COPY_INTERVAL;
+        }
+
+        /**
+         * Time, in seconds, a file must have been left unmodified to be
+         * copied back to the master by the live copy.
+         */
+        public int getLiveCopyQuietPeriod() {
+            return liveCopyQuietPeriod > 0 ? liveCopyQuietPeriod : DEFAULT_LIVE_COPY_QUIET_PERIOD;
+        }
+
+        /**
+         * Maximum bandwidth used by all the copies, in KB/s, {@code 0} for no
+         * limit.
+         */
+        public int getBandwidthLimit() {
+            return bandwidthLimit;
+        }
+
+        /**
+         * Maximum bandwidth used by the copies to or from a single node, as
+         * {@code <label expression>=<KB/s>} lines: The first line whose
+         * label expression matches a node applies.
+         */
+        public String getNodeBandwidthLimits() {
+            return nodeBandwidthLimits;
+        }
+
+        /**
+         * Returns the maximum bandwidth, in KB/s, the copies to or from the
+         * given node can use, or {@code 0} for no limit.
+         */
+        public int getNodeBandwidthLimit(Node node) {
+            if(node == null || StringUtils.isBlank(nodeBandwidthLimits)) {
+                return 0;
+            }
+            for(String line : nodeBandwidthLimits.split("[\\r\\n]+")) {
+                int i = line.lastIndexOf('=');
+                if(i <= 0) {
+                    continue;
+                }
+                try {
+                    int limit = Integer.parseInt(line.substring(i + 1).trim());
+                    Label label = Hudson.getInstance().getLabel(line.substring(0, i).trim());
+                    if(label != null && label.contains(node)) {
+                        return Math.max(0, limit);
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Invalid bandwidth limit: " + line);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the {@link Throttle} to apply to the copies to or from the
+         * given node, or {@code null} if their bandwidth isn't limited.
+         */
+        public Throttle getThrottle(Node node) {
+            List<Throttle.TokenBucket> buckets = new ArrayList<Throttle.TokenBucket>();
+            if(bandwidthLimit > 0) {
+                buckets.add(Throttle.getGlobalBucket(bandwidthLimit * 1024L));
+            }
+            int nodeLimit = getNodeBandwidthLimit(node);
+            if(nodeLimit > 0) {
+                buckets.add(Throttle.getNodeBucket(node.getNodeName(), nodeLimit * 1024L));
+            }
+            return buckets.isEmpty() ? null : new Throttle(buckets);
+        }
+
+        private void configureScheduler() {
+            TransferScheduler.get().configure(maxTransfers, maxTransfersPerNode, getSchedulingPolicy());
+        }
+
+        /**
+         * Returns the configuration of the file cache of the given node, or
+         * {@code null} if the cache is disabled or can't be used.
+         */
+        public SlaveFileCache.Config getSlaveCacheConfig(Node node) {
+            if(!slaveCacheEnabled || node == null) {
+                return null;
+            }
+            FilePath rootPath = node.getRootPath();
+            if(rootPath == null) { // the node is offline
+                return null;
+            }
+            return new SlaveFileCache.Config(
+                    rootPath.child(SlaveFileCache.DEFAULT_DIRECTORY_NAME).getRemote(),
+                    getSlaveCacheMaxSize() * 1024L * 1024L);
+        }
+
+        private final static int DEFAULT_SLAVE_CACHE_MAX_SIZE = 1024; // MB
+        private final static int DEFAULT_MAX_STREAMS = 4;
+        private final static int DEFAULT_BUNDLE_CACHE_MAX_SIZE = 2048; // MB
+        private final static int DEFAULT_SEGMENT_SIZE = 64; // MB
+        private final static int DEFAULT_PREFETCH_BANDWIDTH_LIMIT = 1024; // KB/s
+        private final static int DEFAULT_LIVE_COPY_INTERVAL = 30; // s
+        private final static int DEFAULT_LIVE_COPY_QUIET_PERIOD = 60; // s
+
     }
 
+    private final static Logger LOGGER = Logger.getLogger(CopyToSlaveBuildWrapper.class.getName());
+
 }
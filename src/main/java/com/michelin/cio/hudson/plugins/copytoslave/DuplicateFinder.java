@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds, among the files archived so far, one having the same content as the
+ * file being archived: Files are first compared by size, then by MD5 checksum,
+ * which is only computed for the files having the same size as another one.
+ * The duplicate keeps its own permissions and modification date, which are
+ * part of its archive entry.
+ *
+ * <p>Only files of at least {@link #MIN_SIZE} bytes are looked at, and no more
+ * than {@link #MAX_ORIGINALS} of them are remembered, so that archiving a huge
+ * tree doesn't require an unbounded amount of memory.</p>
+ */
+class DuplicateFinder {
+
+    private final Map<Long, List<Archived>> archived = new HashMap<Long, List<Archived>>();
+    /** Number of files in {@link #archived}. */
+    private int count;
+
+    /**
+     * Returns the path of the file archived so far with the same content as
+     * {@code file}, or {@code null} if there's none, in which case
+     * {@code file} is recorded as a possible original for the next files.
+     */
+    String findOriginal(File file, String relativePath) throws IOException {
+        long size = file.length();
+        if(size < MIN_SIZE) {
+            return null; // not worth it
+        }
+        Archived candidate = new Archived(file, relativePath);
+        List<Archived> sameSize = archived.get(size);
+        if(sameSize != null) {
+            for(Archived a : sameSize) {
+                if(a.getDigest().equals(candidate.getDigest())) {
+                    return a.path;
+                }
+            }
+        }
+        if(count < MAX_ORIGINALS) {
+            if(sameSize == null) {
+                sameSize = new ArrayList<Archived>(1);
+                archived.put(size, sameSize);
+            }
+            sameSize.add(candidate);
+            count++;
+        }
+        return null;
+    }
+
+    private static class Archived {
+
+        final File file;
+        final String path;
+        private String digest;
+
+        Archived(File file, String path) {
+            this.file = file;
+            this.path = path;
+        }
+
+        String getDigest() throws IOException {
+            if(digest == null) {
+                digest = FileManifest.digest(file);
+            }
+            return digest;
+        }
+
+    }
+
+    final static long MIN_SIZE = 16 * 1024;
+    final static int MAX_ORIGINALS = 10000;
+
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import hudson.Functions;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates files from existing ones, using reflinks (copy on write clones)
+ * when possible.
+ *
+ * <p>Links are created through the C library (as Hudson does for
+ * {@code chmod}); On platforms where this isn't possible, files are copied.</p>
+ */
+public class FileLinker {
+
+    private FileLinker() {
+    }
+
+    /**
+     * Makes {@code target} hold the same content as {@code source}, using the
+     * given strategy when possible and a plain copy otherwise.
+     *
+     * @return the strategy which has actually been used
+     */
+    public static Strategy link(File source, File target, Strategy strategy) throws IOException {
+        if(target.exists() && !target.delete()) {
+            throw new IOException("Failed to delete " + target);
+        }
+        if(strategy == Strategy.REFLINK && createReflink(source, target)) {
+            return Strategy.REFLINK;
+        }
+        copy(source, target);
+        return Strategy.COPY;
+    }
+
+    /**
+     * Copies {@code source} to {@code target}, letting the OS move the bytes
+     * from a file to the other one when it can.
+     */
+    public static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel src = in.getChannel(), dst = out.getChannel();
+                long size = src.size(), position = 0;
+                while(position < size) {
+                    long transferred = src.transferTo(position, size - position, dst);
+                    if(transferred == 0 && position >= src.size()) {
+                        break; // the file has been truncated meanwhile
+                    }
+                    position += transferred;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Tries to clone {@code source} into the new file {@code target}, both
+     * files sharing their blocks till one of them gets modified; This is only
+     * supported on Linux, by file systems such as Btrfs or XFS. Returns
+     * {@code false} if it failed.
+     */
+    public static boolean createReflink(File source, File target) {
+        LinkLibrary lib = getLibrary();
+        if(lib == null || !"Linux".equals(System.getProperty("os.name"))) {
+            return false;
+        }
+        try {
+            int src = lib.open(source.getPath(), O_RDONLY, 0);
+            if(src < 0) {
+                return false;
+            }
+            boolean cloned = false;
+            try {
+                int dst = lib.open(target.getPath(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+                if(dst < 0) {
+                    return false;
+                }
+                try {
+                    cloned = lib.ioctl(dst, new NativeLong(FICLONE), src) == 0;
+                } finally {
+                    lib.close(dst);
+                }
+            } finally {
+                lib.close(src);
+                if(!cloned) {
+                    target.delete();
+                }
+            }
+            return cloned;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static synchronized LinkLibrary getLibrary() {
+        if(!libraryLoaded) {
+            libraryLoaded = true;
+            if(!Functions.isWindows()) {
+                try {
+                    library = (LinkLibrary) Native.loadLibrary("c", LinkLibrary.class);
+                } catch (Throwable t) { // be defensive: JNA may not be usable at all
+                    LOGGER.log(Level.FINE, "Links are not supported, files will be copied", t);
+                }
+            }
+        }
+        return library;
+    }
+
+    /**
+     * The subset of the C library we need.
+     */
+    public interface LinkLibrary extends Library {
+        int open(String pathname, int flags, int mode);
+        int ioctl(int fd, NativeLong request, int arg);
+        int close(int fd);
+    }
+
+    /**
+     * How a file is created from an existing one.
+     *
+     * <p>There's deliberately no hard link strategy here: The files created
+     * this way end up in workspaces, where builds may modify them in place,
+     * which would modify the source files too.</p>
+     */
+    public enum Strategy {
+        /** The content is copied. */
+        COPY,
+        /** Same as {@link #COPY}, but files having the same size and modification date on both sides are left untouched. */
+        SKIP_UNCHANGED,
+        /** Both files share their blocks till one of them gets modified; Falls back to {@link #COPY}. */
+        REFLINK
+    }
+
+    // Linux values
+    private final static int O_RDONLY = 0;
+    private final static int O_WRONLY = 01;
+    private final static int O_CREAT = 0100;
+    private final static int O_TRUNC = 01000;
+    /** {@code _IOW(0x94, 9, int)} */
+    private final static long FICLONE = 0x40049409L;
+
+    private static LinkLibrary library;
+    private static boolean libraryLoaded;
+
+    private final static Logger LOGGER = Logger.getLogger(FileLinker.class.getName());
+
+}
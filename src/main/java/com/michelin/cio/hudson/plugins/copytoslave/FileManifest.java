@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Util;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * List of the files matched on the source side of a copy, along with the
+ * metadata required to decide on the target side whether they have to be sent
+ * or not.
+ *
+ * <p>Paths are relative to the root of the copy and always use {@code /} as
+ * separator, whatever the OS of the node.</p>
+ */
+public class FileManifest implements Serializable {
+
+    private static final long serialVersionUID = 1;
+
+    /**
+     * Entries indexed by their path on the target side so that, when
+     * flattening, only the last source file wins (as with a full copy).
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private final boolean flatten;
+
+    public FileManifest(boolean flatten) {
+        this.flatten = flatten;
+    }
+
+    /**
+     * Scans {@code baseDir} and records all the matching files.
+     *
+     * @param computeDigests if {@code true}, the MD5 checksum of each file is
+     *        computed too
+     */
+    public static FileManifest build(final File baseDir, String includes, String excludes,
+            boolean includeAntExcludes, boolean flatten, final boolean computeDigests) throws IOException {
+        final FileManifest manifest = new FileManifest(flatten);
+        new MyGlobDirScanner(includes, excludes, includeAntExcludes).scan(baseDir, new FileVisitor() {
+            @Override
+            public void visit(File f, String relativePath) throws IOException {
+                if(f.isDirectory()) {
+                    return;
+                }
+                manifest.add(new Entry(
+                        normalize(relativePath), f.length(), f.lastModified(), IOUtils.mode(f),
+                        computeDigests ? digest(f) : null));
+            }
+        });
+        return manifest;
+    }
+
+    public void add(Entry entry) {
+        String targetPath = getTargetPath(entry.getPath(), flatten);
+        entries.remove(targetPath); // keeps the insertion order consistent with the last wins rule
+        entries.put(targetPath, entry);
+    }
+
+    /**
+     * Removes the entries of the files modified after {@code time}, e.g.
+     * because they're still being written.
+     */
+    public void removeModifiedAfter(long time) {
+        Iterator<Entry> it = entries.values().iterator();
+        while(it.hasNext()) {
+            if(it.next().getLastModified() > time) {
+                it.remove();
+            }
+        }
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Returns the entries indexed by their path on the target side.
+     */
+    public Map<String, Entry> getEntriesByTargetPath() {
+        return entries;
+    }
+
+    public boolean isFlatten() {
+        return flatten;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the source paths of all the entries of this manifest.
+     */
+    public List<String> getPaths() {
+        List<String> paths = new ArrayList<String>(entries.size());
+        for(Entry entry : entries.values()) {
+            paths.add(entry.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Returns a checksum which changes as soon as a file is added, removed or
+     * modified (as far as size and modification date are concerned).
+     */
+    public String getFingerprint() {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // MD5 is always available
+        }
+        for(Entry entry : entries.values()) {
+            String line = entry.getPath() + '\0' + entry.getSize() + '\0' + entry.getLastModified() + '\n';
+            try {
+                md5.update(line.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new Error(e); // UTF-8 is always available
+            }
+        }
+        return Util.toHexString(md5.digest());
+    }
+
+    /**
+     * Computes where a file will land on the target side; This mimics the
+     * flatten behavior of {@link MyFilePath#readFromTar}.
+     */
+    public static String getTargetPath(String path, boolean flatten) {
+        if(!flatten || (!path.contains("/") && !path.contains("\\"))) {
+            return path;
+        }
+        String fileName = StringUtils.substringAfterLast(path, "/");
+        if(StringUtils.isBlank(fileName)) {
+            fileName = StringUtils.substringAfterLast(path, "\\");
+        }
+        return fileName;
+    }
+
+    static String normalize(String relativePath) {
+        return relativePath.replace('\\', '/');
+    }
+
+    static String digest(File f) throws IOException {
+        return Util.getDigestOf(new FileInputStream(f)); // getDigestOf() closes the stream
+    }
+
+    /**
+     * Source file as seen by the manifest.
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1;
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final int mode;
+        private final String digest;
+
+        public Entry(String path, long size, long lastModified, int mode, String digest) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+            this.digest = digest;
+        }
+
+        /**
+         * Path of the file, relative to the root of the copy on the source side.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Unix file mode, or {@code -1} if it is not known.
+         */
+        public int getMode() {
+            return mode;
+        }
+
+        /**
+         * MD5 checksum of the file, or {@code null} if it has not been computed.
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Tells if {@code f} holds the same content as this entry, without
+         * reading it if possible.
+         *
+         * <p>Tar archives only keep modification times at the second level, so
+         * that's the precision used for comparison.</p>
+         */
+        public boolean isUpToDate(File f) throws IOException {
+            if(!f.isFile() || f.length() != size) {
+                return false;
+            }
+            if(f.lastModified() / 1000 == lastModified / 1000) {
+                return true;
+            }
+            if(digest != null && digest.equals(digest(f))) {
+                // same content: align the timestamp so that next time we don't need to read the file
+                f.setLastModified(lastModified);
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+}
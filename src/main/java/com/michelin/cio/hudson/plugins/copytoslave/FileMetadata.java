@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Functions;
+import static hudson.util.jna.GNUCLibrary.LIBC;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Chmod;
+import org.apache.tools.ant.types.FileList;
+
+/**
+ * Modification dates and permissions to be applied to a set of files once
+ * their content has been written.
+ *
+ * <p>When the C library can't be used to change permissions (cf.
+ * HUDSON-8155), Ant's {@link Chmod} task is used, once per distinct mode
+ * rather than once per file.</p>
+ *
+ * <p>Files can be added concurrently.</p>
+ */
+public class FileMetadata {
+
+    private final ConcurrentLinkedQueue<Item> items = new ConcurrentLinkedQueue<Item>();
+
+    /**
+     * @param mode Unix file mode, only the permission bits are used; {@code 0}
+     *        or {@code -1} to leave the permissions untouched
+     */
+    public void add(File f, long lastModified, int mode) {
+        items.add(new Item(f, lastModified, mode));
+    }
+
+    public void apply() {
+        Map<Integer, Map<File, List<String>>> fallback = null; // mode -> dir -> file names
+
+        Item item;
+        while((item = items.poll()) != null) {
+            item.file.setLastModified(item.lastModified);
+
+            int mode = item.mode&0777;
+            if(item.mode == -1 || mode == 0 || Functions.isWindows()) { // be defensive
+                continue;
+            }
+            if(fallback == null) {
+                try {
+                    LIBC.chmod(item.file.getPath(), mode);
+                    continue;
+                } catch (NoClassDefFoundError ncdfe) {
+                    // be defensive. see http://www.nabble.com/-3.0.6--Site-copy-problem%3A-hudson.util.IOException2%3A--java.lang.NoClassDefFoundError%3A-Could-not-initialize-class--hudson.util.jna.GNUCLibrary-td23588879.html
+                    continue;
+                } catch (UnsatisfiedLinkError ule) {
+                    // HUDSON-8155: use Ant's chmod task for this file and the next ones
+                    fallback = new HashMap<Integer, Map<File, List<String>>>();
+                }
+            }
+
+            Map<File, List<String>> dirs = fallback.get(mode);
+            if(dirs == null) {
+                dirs = new HashMap<File, List<String>>();
+                fallback.put(mode, dirs);
+            }
+            File dir = item.file.getAbsoluteFile().getParentFile();
+            List<String> names = dirs.get(dir);
+            if(names == null) {
+                names = new ArrayList<String>();
+                dirs.put(dir, names);
+            }
+            names.add(item.file.getName());
+        }
+
+        if(fallback != null) {
+            Project project = new Project();
+            for(Map.Entry<Integer, Map<File, List<String>>> e : fallback.entrySet()) {
+                Chmod chmodTask = new Chmod();
+                chmodTask.setProject(project);
+                chmodTask.setPerm(Integer.toOctalString(e.getKey()));
+                for(Map.Entry<File, List<String>> dir : e.getValue().entrySet()) {
+                    FileList fileList = new FileList();
+                    fileList.setDir(dir.getKey());
+                    for(String name : dir.getValue()) {
+                        FileList.FileName fileName = new FileList.FileName();
+                        fileName.setName(name);
+                        fileList.addConfiguredFile(fileName);
+                    }
+                    chmodTask.addFilelist(fileList);
+                }
+                chmodTask.execute();
+            }
+        }
+    }
+
+    private static class Item {
+
+        final File file;
+        final long lastModified;
+        final int mode;
+
+        Item(File file, long lastModified, int mode) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.mode = mode;
+        }
+
+    }
+
+}
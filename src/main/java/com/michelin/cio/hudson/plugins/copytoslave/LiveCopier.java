@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies files back to the master while the build is running, so that
+ * {@link CopyToMasterNotifier} only has to copy the ones which are left when
+ * the build ends.
+ *
+ * <p>The workspace of the slave is polled at a regular interval (Java 6
+ * doesn't provide any way to be notified of changes to the file system): Each
+ * round copies the files which match the patterns of the notifier, are new or
+ * modified, and haven't been modified for the configured quiet period; Files
+ * still being written are thus left for a later round, or for the notifier.
+ * Failures are only reported: The notifier copies whatever is missing.</p>
+ */
+public class LiveCopier implements Runnable {
+
+    private final AbstractBuild<?,?> build;
+    private final CopyToMasterNotifier notifier;
+    private final Node node;
+    private final EnvVars env;
+    private final PrintStream logger;
+    private final long interval;
+    private final long quietPeriod;
+    private final TransferStatistics statistics = new TransferStatistics();
+    private Thread thread;
+    private boolean stopped;
+
+    LiveCopier(AbstractBuild<?,?> build, CopyToMasterNotifier notifier, Node node, EnvVars env, PrintStream logger,
+            long interval, long quietPeriod) {
+        this.build = build;
+        this.notifier = notifier;
+        this.node = node;
+        this.env = env;
+        this.logger = logger;
+        this.interval = interval;
+        this.quietPeriod = quietPeriod;
+    }
+
+    private synchronized void start() {
+        thread = new Thread(this, "copy-to-slave live copy for " + build.getFullDisplayName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the live copy of the given build, waiting for the current round
+     * to complete, and returns what has been copied, or {@code null} if there
+     * is no live copy for this build.
+     */
+    public static TransferStatistics stop(AbstractBuild<?,?> build) throws InterruptedException {
+        LiveCopier copier;
+        synchronized(COPIERS) {
+            copier = COPIERS.get(build);
+        }
+        if(copier == null) {
+            return null;
+        }
+        copier.stop();
+        return copier.statistics;
+    }
+
+    private void stop() throws InterruptedException {
+        Thread t;
+        synchronized(this) {
+            stopped = true;
+            notifyAll();
+            t = thread;
+        }
+        if(t != null) {
+            t.join();
+        }
+    }
+
+    public void run() {
+        try {
+            while(true) {
+                synchronized(this) {
+                    if(!stopped) {
+                        wait(interval);
+                    }
+                    if(stopped) {
+                        return;
+                    }
+                }
+                copy();
+            }
+        } catch (InterruptedException e) {
+            // Hudson is shutting down
+        }
+    }
+
+    private void copy() throws InterruptedException {
+        FilePath workspace = build.getWorkspace();
+        try {
+            if(workspace == null || !workspace.exists()) {
+                return; // the checkout hasn't started yet
+            }
+
+            TransferOptions options = notifier.createTransferOptions(node);
+            options.setDeltaSync(true);
+            options.setResumable(false);
+            options.setMinAge(quietPeriod);
+
+            TransferScheduler.Slot slot = TransferScheduler.get().acquire(build.getProject().getFullName(), node.getNodeName(), logger);
+            try {
+                MyFilePath.copyRecursiveTo(
+                        workspace,
+                        env.expand(notifier.getIncludes()),
+                        env.expand(notifier.getExcludes()),
+                        notifier.isFlatten(), notifier.isIncludeAntExcludes(),
+                        notifier.getDestinationFilePath(build, env, null), options);
+            } finally {
+                slot.release();
+            }
+
+            TransferStatistics round = options.getStatistics();
+            // the files skipped by a round are mostly the ones sent by the previous rounds
+            round.addFilesSkipped(-round.getFilesSkipped());
+            statistics.add(round);
+        } catch (IOException e) {
+            logger.println("[copy-to-slave] Live copy failed, the files will be copied at the end of the build: " + e.getMessage());
+            LOGGER.log(Level.WARNING, "Live copy failed for " + build.getFullDisplayName(), e);
+        }
+    }
+
+    /**
+     * Starts the live copy of the builds whose {@link CopyToMasterNotifier}
+     * asks for it, and forgets about it once the build is over.
+     */
+    @Extension
+    public static class Listener extends RunListener<AbstractBuild> {
+
+        public Listener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onStarted(AbstractBuild build, TaskListener listener) {
+            // the build isn't bound to its node yet, but we're in the thread of its executor
+            Computer computer = Computer.currentComputer();
+            Node node = computer != null ? computer.getNode() : null;
+            if(node == null || node == Hudson.getInstance() || !(build.getProject() instanceof AbstractProject)) {
+                return;
+            }
+            CopyToMasterNotifier notifier = (CopyToMasterNotifier) ((AbstractProject<?,?>) build.getProject()).getPublishersList().get(
+                    CopyToMasterNotifier.class);
+            if(notifier == null || !notifier.isLiveCopy()) {
+                return;
+            }
+
+            try {
+                EnvVars env = build.getEnvironment(listener);
+                env.overrideAll(build.getBuildVariables());
+
+                CopyToSlaveBuildWrapper.DescriptorImpl globalConfig = notifier.getDescriptor().getGlobalConfig();
+                LiveCopier copier = new LiveCopier(build, notifier, node, env, listener.getLogger(),
+                        globalConfig.getLiveCopyInterval() * 1000L, globalConfig.getLiveCopyQuietPeriod() * 1000L);
+                synchronized(COPIERS) {
+                    COPIERS.put(build, copier);
+                }
+                copier.start();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to start the live copy for " + build.getFullDisplayName(), e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Failed to start the live copy for " + build.getFullDisplayName(), e);
+            }
+        }
+
+        @Override
+        public void onFinalized(AbstractBuild build) {
+            LiveCopier copier;
+            synchronized(COPIERS) {
+                copier = COPIERS.remove(build);
+            }
+            if(copier != null) {
+                try {
+                    copier.stop(); // in case the notifier didn't run
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Interrupted while stopping the live copy for " + build.getFullDisplayName(), e);
+                }
+            }
+        }
+
+    }
+
+    private final static Map<AbstractBuild<?,?>, LiveCopier> COPIERS = new HashMap<AbstractBuild<?,?>, LiveCopier>();
+
+    private final static Logger LOGGER = Logger.getLogger(LiveCopier.class.getName());
+
+}
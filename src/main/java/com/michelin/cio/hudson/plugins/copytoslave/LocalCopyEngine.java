@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FileVisitor;
+import hudson.util.IOException2;
+import hudson.util.IOUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies files between two directories of the same node, without archiving
+ * them: This is used when the source and the target of a copy are on the same
+ * node, and when a slave {@link SharedFileSystem sees} the source directory
+ * of the master.
+ *
+ * <p>Files are created using the {@link TransferOptions#getLinkStrategy()
+ * link strategy} of the copy; As soon as a reflink can't be created (e.g.
+ * because both directories are on distinct file systems), the next files are
+ * copied. With {@link FileLinker.Strategy#SKIP_UNCHANGED} or
+ * {@link TransferOptions#isDeltaSync() delta sync}, files which have the same
+ * size and modification date on both sides are left untouched.
+ * Modification dates and permissions are preserved, as with an archive, and
+ * files are processed by a small pool of threads.</p>
+ */
+public class LocalCopyEngine implements FileCallable<TransferStatistics> {
+
+    private static final long serialVersionUID = 1;
+
+    private final String sourcePath;
+    private final String includes;
+    private final String excludes;
+    private final boolean includeAntExcludes;
+    private final boolean flatten;
+    private final TransferOptions options;
+
+    /**
+     * @param sourcePath the directory to copy the files from, on the node
+     *        this callable is run on
+     */
+    public LocalCopyEngine(String sourcePath, String includes, String excludes, boolean includeAntExcludes, boolean flatten,
+            TransferOptions options) {
+        this.sourcePath = sourcePath;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.includeAntExcludes = includeAntExcludes;
+        this.flatten = flatten;
+        this.options = options;
+    }
+
+    public TransferStatistics invoke(File baseDir, VirtualChannel channel) throws IOException {
+        final TransferStatistics statistics = new TransferStatistics();
+        File sourceBaseDir = new File(sourcePath);
+        if(!sourceBaseDir.exists()) {
+            return statistics;
+        }
+
+        long start = System.currentTimeMillis();
+        // indexed by target path so that, when flattening, the last file wins
+        final Map<File, File> files = new LinkedHashMap<File, File>();
+        final File targetBaseDir = baseDir;
+        new MyGlobDirScanner(includes, excludes, includeAntExcludes).scan(sourceBaseDir, new FileVisitor() {
+            @Override
+            public void visit(File f, String relativePath) throws IOException {
+                File target = new File(targetBaseDir, FileManifest.getTargetPath(relativePath, flatten));
+                files.remove(target);
+                files.put(target, f);
+            }
+        });
+        statistics.addScanTime(System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        final FileMetadata metadata = new FileMetadata();
+        final FallbackStrategy strategy = new FallbackStrategy(options.getLinkStrategy());
+        final boolean skipUnchanged = options.isDeltaSync() || options.getLinkStrategy() == FileLinker.Strategy.SKIP_UNCHANGED;
+        ExecutorService copiers = Executors.newFixedThreadPool(COPIER_THREADS, new CopierThreadFactory());
+        try {
+            List<Future<?>> copies = new ArrayList<Future<?>>(files.size());
+            for(final Map.Entry<File, File> e : files.entrySet()) {
+                copies.add(copiers.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        File source = e.getValue(), target = e.getKey();
+                        if(skipUnchanged && target.isFile()
+                                && target.length() == source.length() && target.lastModified() == source.lastModified()) {
+                            statistics.addFilesSkipped(1);
+                            return null;
+                        }
+                        target.getParentFile().mkdirs();
+                        strategy.apply(source, target);
+                        metadata.add(target, source.lastModified(), IOUtils.mode(source));
+                        statistics.addFilesSent(1);
+                        statistics.addRawBytes(source.length());
+                        return null;
+                    }
+                }));
+            }
+            for(Future<?> copy : copies) {
+                copy.get();
+            }
+            metadata.apply();
+        } catch (ExecutionException e) {
+            throw new IOException2("Failed to copy from "+sourceBaseDir+" to "+baseDir, e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException2("Interrupted while copying from "+sourceBaseDir+" to "+baseDir, e);
+        } finally {
+            copiers.shutdownNow();
+        }
+        statistics.addTransferTime(System.currentTimeMillis() - start);
+        return statistics;
+    }
+
+    /**
+     * The link strategy in use, which falls back to copies once a link has
+     * failed.
+     */
+    private static class FallbackStrategy {
+
+        private volatile FileLinker.Strategy current;
+
+        FallbackStrategy(FileLinker.Strategy initial) {
+            this.current = initial;
+        }
+
+        void apply(File source, File target) throws IOException {
+            FileLinker.Strategy requested = current;
+            if(FileLinker.link(source, target, requested) != requested) {
+                current = FileLinker.Strategy.COPY;
+            }
+        }
+
+    }
+
+    private static class CopierThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "copy-to-slave local copier #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+    private final static int COPIER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+}
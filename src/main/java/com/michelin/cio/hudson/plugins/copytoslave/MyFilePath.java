@@ -27,32 +27,33 @@ package com.michelin.cio.hudson.plugins.copytoslave;
 
 import hudson.FilePath;
 import hudson.FilePath.FileCallable;
-import hudson.FilePath.TarCompression;
-import hudson.Functions;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Hudson;
-import hudson.org.apache.tools.tar.TarInputStream;
-import hudson.remoting.Future;
 import hudson.remoting.Pipe;
 import hudson.remoting.VirtualChannel;
 import hudson.util.IOException2;
 import hudson.util.IOUtils;
 import hudson.util.io.Archiver;
-import hudson.util.io.ArchiverFactory;
-import static hudson.util.jna.GNUCLibrary.LIBC;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import org.apache.commons.lang.StringUtils;
-import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.Project;
-import org.apache.tools.ant.taskdefs.Chmod;
-import org.apache.tools.ant.taskdefs.Copy;
-import org.apache.tools.ant.types.FileSet;
-import org.apache.tools.tar.TarEntry;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 
 /**
  * Complements Hudson's {@link FilePath} to enhance the {@code copyRecursiveTo()}
@@ -69,161 +70,403 @@ public class MyFilePath implements Serializable {
      * Enhances Hudson's {@link FilePath#copyRecursiveTo} until I patch Hudson
      * core and upgrade the plugin to the corresponding Hudson version.
      *
-     * <p>This method supports only local to local and local to remote copies.</p>
+     * <p>This method supports local to local, local to remote and remote to
+     * local copies.</p>
      */
     public static int copyRecursiveTo(
             final FilePath source,
             final String includes, final String excludes,
             final boolean flatten, final boolean includeAntExcludes,
             final FilePath target) throws IOException, InterruptedException {
+        return copyRecursiveTo(source, includes, excludes, flatten, includeAntExcludes, target, new TransferOptions());
+    }
+
+    /**
+     * Same as {@link #copyRecursiveTo(FilePath, String, String, boolean, boolean, FilePath)}
+     * but allows tuning the transfer.
+     *
+     * <p>When {@link TransferOptions#isDeltaSync()} is enabled, the target
+     * node is first sent the list of matching files and replies with the ones
+     * it doesn't hold yet (or holds in another version): Only these ones are
+     * then archived.</p>
+     *
+     * <p>When {@link TransferOptions#getCache()} is set, files go through the
+     * file cache of the target node: Files which are already cached there are
+     * not sent at all.</p>
+     *
+     * <p>When {@link TransferOptions#isDetectSharedFileSystem()} is enabled
+     * and the target node sees the source directory, nothing is sent: The
+     * target node copies the files itself.</p>
+     */
+    public static int copyRecursiveTo(
+            final FilePath source,
+            final String includes, final String excludes,
+            final boolean flatten, final boolean includeAntExcludes,
+            final FilePath target, final TransferOptions options) throws IOException, InterruptedException {
         if(source.getChannel() == target.getChannel()) {
             // --- local --> local copy ---
-            return new FileCallable<Integer>() {
-                public Integer invoke(File sourceBaseDir, VirtualChannel channel) throws IOException {
-                    if(!sourceBaseDir.exists()) {
-                        return 0;
+            TransferStatistics copied = target.act(new LocalCopyEngine(
+                    source.getRemote(), includes, excludes, includeAntExcludes, flatten, options));
+            options.getStatistics().add(copied);
+            return copied.getFilesSent();
+        }
+        else if(source.isRemote() && target.isRemote()) {
+            throw new IOException("Copies between two slaves are not supported: from "+source+" to "+target);
+        }
+        else {
+            // --- local -> remote or remote -> local copy ---
+            if(options.isDetectSharedFileSystem() && SharedFileSystem.isShared(source, target)) {
+                // the target node sees the source files: let it copy them without going through the channel
+                TransferStatistics copied = target.act(new LocalCopyEngine(
+                        source.getRemote(), includes, excludes, includeAntExcludes, flatten, options));
+                options.getStatistics().add(copied);
+                return copied.getFilesSent();
+            }
+            if(options.isResumable()) {
+                return ResumableTransfer.copy(source, includes, excludes, flatten, includeAntExcludes, target, options);
+            }
+
+            TransferStatistics statistics = options.getStatistics();
+            long start = System.currentTimeMillis();
+
+            if(!options.isDeltaSync() && options.getCache() == null && options.getStreams() <= 1 && options.getBlockDeltaThreshold() <= 0
+                    && options.getMinAge() <= 0) {
+                try {
+                    if(!source.isRemote() && options.getBundleCacheMaxSize() > 0) {
+                        return sendBundle(new File(source.getRemote()), includes, excludes, includeAntExcludes, flatten, target, options);
                     }
+                    // everything has to be sent: archive the files as soon as they're found
+                    return transfer(source, includes, excludes, includeAntExcludes, null, flatten, target, options);
+                } finally {
+                    statistics.addTransferTime(System.currentTimeMillis() - start);
+                }
+            }
 
-                    try {
-                        class CopyImpl extends Copy {
-                            private int copySize;
+            FileManifest manifest = buildManifest(source, includes, excludes, includeAntExcludes, flatten, options.isDigestRequired(), options.getMinAge());
+            statistics.addScanTime(System.currentTimeMillis() - start);
+            List<String> paths;
+            if(options.isDeltaSync() || options.getCache() != null) {
+                start = System.currentTimeMillis();
+                paths = target.act(new ListOutdatedFiles(manifest, options));
+                statistics.addNegotiationTime(System.currentTimeMillis() - start);
+            }
+            else {
+                paths = manifest.getPaths();
+            }
+            statistics.addFilesSkipped(manifest.size() - paths.size());
 
-                            public CopyImpl() {
-                                setProject(new org.apache.tools.ant.Project());
-                            }
+            start = System.currentTimeMillis();
+            try {
+                int r = 0;
+                if(options.getBlockDeltaThreshold() > 0) {
+                    List<String> remaining = BlockDelta.transfer(source, manifest, paths, flatten, target, options);
+                    r = paths.size() - remaining.size();
+                    paths = remaining;
+                }
+                return r + transfer(source, manifest, paths, flatten, target, options);
+            } finally {
+                statistics.addTransferTime(System.currentTimeMillis() - start);
+            }
+        }
+    }
 
-                            @Override
-                            protected void doFileOperations() {
-                                copySize = super.fileCopyMap.size();
-                                super.doFileOperations();
-                            }
+    /**
+     * Builds the {@link FileManifest} of {@code source}, using the
+     * {@link SourceTreeIndex} when {@code source} is on the master.
+     */
+    static FileManifest buildManifest(
+            FilePath source, String includes, String excludes, boolean includeAntExcludes,
+            boolean flatten, boolean computeDigests, long minAge) throws IOException, InterruptedException {
+        if(source.isRemote()) {
+            return source.act(new BuildManifest(includes, excludes, includeAntExcludes, flatten, computeDigests, minAge));
+        }
+        FileManifest manifest = SourceTreeIndex.get().getManifest(
+                new File(source.getRemote()), includes, excludes, includeAntExcludes, flatten, computeDigests);
+        if(minAge > 0) {
+            manifest.removeModifiedAfter(System.currentTimeMillis() - minAge);
+        }
+        return manifest;
+    }
+
+    /**
+     * Moves the content of {@code sourceDir} into {@code targetDir}, which
+     * must be on the same node, overwriting existing files, then deletes
+     * {@code sourceDir}.
+     */
+    public static void moveContentsTo(FilePath sourceDir, FilePath targetDir) throws IOException, InterruptedException {
+        moveContentsTo(sourceDir, targetDir, null);
+    }
 
-                            public int getNumCopied() {
-                                return copySize;
+    /**
+     * Same as {@link #moveContentsTo(FilePath, FilePath)} but only moves the
+     * files whose relative path is part of {@code paths} (all of them if it's
+     * {@code null}), the other ones being deleted with {@code sourceDir}.
+     */
+    public static void moveContentsTo(FilePath sourceDir, FilePath targetDir, Collection<String> paths) throws IOException, InterruptedException {
+        final String targetPath = targetDir.getRemote();
+        final HashSet<String> kept = paths != null ? new HashSet<String>(paths) : null;
+        sourceDir.act(new FileCallable<Void>() {
+            private static final long serialVersionUID = 1;
+
+            public Void invoke(File dir, VirtualChannel channel) throws IOException {
+                if(kept == null) {
+                    move(dir, new File(targetPath));
+                }
+                else {
+                    for(String path : kept) {
+                        File child = new File(dir, path);
+                        if(child.isFile()) {
+                            File f = new File(targetPath, path);
+                            f.getParentFile().mkdirs();
+                            f.delete();
+                            if(!child.renameTo(f)) {
+                                FileUtils.copyFile(child, f);
                             }
                         }
+                    }
+                }
+                Util.deleteRecursive(dir);
+                return null;
+            }
 
-                        FileSet fs = Util.createFileSet(sourceBaseDir, includes, excludes);
-                        if(includeAntExcludes) {
-                            fs.setDefaultexcludes(false);   // HUDSON-7999
+            private void move(File dir, File target) throws IOException {
+                File[] children = dir.listFiles();
+                if(children == null) {
+                    return;
+                }
+                target.mkdirs();
+                for(File child : children) {
+                    File f = new File(target, child.getName());
+                    if(child.isDirectory()) {
+                        move(child, f);
+                    }
+                    else {
+                        f.delete();
+                        if(!child.renameTo(f)) {
+                            FileUtils.copyFile(child, f);
                         }
-
-                        CopyImpl copyTask = new CopyImpl();
-                        copyTask.setTodir(new File(target.getRemote()));
-                        copyTask.addFileset(fs);
-                        copyTask.setOverwrite(true);
-                        copyTask.setIncludeEmptyDirs(false);
-                        copyTask.setFlatten(flatten);
-
-                        copyTask.execute();
-                        return copyTask.getNumCopied();
-                    } catch (BuildException e) {
-                        throw new IOException2("Failed to copy from "+sourceBaseDir+" to "+target,e);
                     }
                 }
-            }.invoke(new File(source.getRemote()), Hudson.MasterComputer.localChannel);
+            }
+        });
+    }
+
+    /**
+     * Sends the given files, spread over as many streams as allowed by
+     * {@code options}.
+     */
+    static int transfer(
+            final FilePath source, FileManifest manifest, List<String> paths, final boolean flatten,
+            final FilePath target, final TransferOptions options) throws IOException, InterruptedException {
+        List<List<String>> partitions = partition(manifest, paths, options.getStreams());
+        if(partitions.size() <= 1) {
+            return transfer(source, null, null, false, paths, flatten, target, options);
         }
-        else {
-            // --- local -> remote copy ---
-            final Pipe pipe = Pipe.createLocalToRemote();
-
-            Future<Void> future = target.actAsync(new FileCallable<Void>() {
-                private static final long serialVersionUID = 1; // HUDSON-8274
-
-                public Void invoke(File f, VirtualChannel channel) throws IOException {
-                    try {
-                        readFromTar(f, flatten, TarCompression.GZIP.extract(pipe.getIn()));
-                        return null;
-                    } finally {
-                        pipe.getIn().close();
-                    }
-                }
-            });
 
-            int r = writeToTar(new File(source.getRemote()), includes, excludes, includeAntExcludes, TarCompression.GZIP.compress(pipe.getOut()));
+        // one stream per partition, the first one being sent from the current thread
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for(final List<String> partition : partitions.subList(1, partitions.size())) {
+            futures.add(Computer.threadPoolForRemoting.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return transfer(source, null, null, false, partition, flatten, target, options);
+                }
+            }));
+        }
+        int r = transfer(source, null, null, false, partitions.get(0), flatten, target, options);
+        for(Future<Integer> f : futures) {
             try {
-                future.get();
+                r += f.get();
             } catch (ExecutionException e) {
-                throw new IOException2(e);
+                throw new IOException2("Failed to copy from "+source+" to "+target, e.getCause());
             }
-            return r;
         }
+        return r;
     }
 
     /**
-     * Full copy/paste of Hudson's {@link FilePath#readFromTar} method with
-     * some tweaking (mainly the flatten behavior).
+     * Sends a tar archive through a new pipe from {@code source} to
+     * {@code target}, one of them being local and the other one remote, and
+     * extracts it there.
      *
-     * @see hudson.FilePath#readFromTar(java.lang.String, java.io.File, java.io.InputStream) 
+     * @param paths the files to be sent, relative to {@code source}, or
+     *        {@code null} to scan {@code source} using {@code includes},
+     *        {@code excludes} and {@code includeAntExcludes}
      */
-    public static void readFromTar(File baseDir, boolean flatten, InputStream in) throws IOException {
-        Chmod chmodTask = null; // HUDSON-8155
+    private static int transfer(
+            FilePath source, String includes, String excludes, boolean includeAntExcludes,
+            Collection<String> paths, boolean flatten,
+            FilePath target, TransferOptions options) throws IOException, InterruptedException {
+        TransferStatistics sent, received;
+        if(!source.isRemote()) {
+            // --- local -> remote: the remote side reads ---
+            Pipe pipe = Pipe.createLocalToRemote();
+            Future<TransferStatistics> future = target.actAsync(new Extract(pipe, flatten, options));
+            sent = new Archive(pipe, includes, excludes, includeAntExcludes, paths, flatten, options)
+                    .invoke(new File(source.getRemote()), Hudson.MasterComputer.localChannel);
+            received = waitFor(future);
+        }
+        else {
+            // --- remote -> local: the remote side writes ---
+            Pipe pipe = Pipe.createRemoteToLocal();
+            Future<TransferStatistics> future = source.actAsync(new Archive(pipe, includes, excludes, includeAntExcludes, paths, flatten, options));
+            received = new Extract(pipe, flatten, options).invoke(new File(target.getRemote()), Hudson.MasterComputer.localChannel);
+            sent = waitFor(future);
+        }
+        options.getStatistics().add(sent);
+        options.getStatistics().add(received);
+        return sent.getFilesSent();
+    }
+
+    /**
+     * Same as {@link #transfer} but sends a compressed archive from the
+     * {@link BundleCache}, which gets built if needed.
+     *
+     * <p>The archive is identified by the options of the copy and by the
+     * fingerprint of the tree to be sent, which requires a scan but no
+     * compression.</p>
+     */
+    private static int sendBundle(
+            final File sourceBaseDir, String includes, String excludes, boolean includeAntExcludes,
+            final boolean flatten, FilePath target, final TransferOptions options) throws IOException, InterruptedException {
+        final FileManifest manifest = SourceTreeIndex.get().getManifest(sourceBaseDir, includes, excludes, includeAntExcludes, flatten, false);
+        String key = Util.getDigestOf(sourceBaseDir.getAbsolutePath() + '\n' + includes + '\n' + excludes + '\n'
+                + flatten + '\n' + includeAntExcludes + '\n' + options.getCodec() + '\n' + options.getCompressionLevel() + '\n'
+                + options.getArchiveFormat() + '\n' + manifest.getFingerprint());
+
+        BundleCache bundleCache = BundleCache.get();
+        File bundle = bundleCache.acquire(key, new BundleCache.Builder() {
+            public void build(File f) throws IOException {
+                writeToTar(sourceBaseDir, manifest.getPaths(), options.getArchiveFormat().createArchiver(
+                        options.getCodec().compress(new FileOutputStream(f), options.getCompressionLevel()), !flatten));
+            }
+        }, options.getBundleCacheMaxSize());
 
-        TarInputStream t = new TarInputStream(in);
         try {
-            TarEntry tarEntry;
-            while ((tarEntry = t.getNextEntry()) != null) {
-                File f = null;
+            Pipe pipe = Pipe.createLocalToRemote();
+            Future<TransferStatistics> future = target.actAsync(new Extract(pipe, flatten, options));
+            OutputStream out = pipe.getOut();
+            if(options.getThrottle() != null) {
+                out = options.getThrottle().wrap(out);
+            }
+            try {
+                IOUtils.copy(bundle, out);
+            } finally {
+                out.close();
+            }
+            options.getStatistics().add(waitFor(future));
+            options.getStatistics().addWireBytes(bundle.length());
+        } finally {
+            bundleCache.release(key);
+        }
+        long rawBytes = 0;
+        for(FileManifest.Entry entry : manifest.getEntries()) {
+            rawBytes += entry.getSize();
+        }
+        options.getStatistics().addRawBytes(rawBytes);
+        options.getStatistics().addFilesSent(manifest.size());
+        return manifest.size();
+    }
 
-                if(!flatten || (!tarEntry.getName().contains("/") && !tarEntry.getName().contains("\\"))) {
-                    f = new File(baseDir, tarEntry.getName());
-                }
-                else {
-                    String fileName = StringUtils.substringAfterLast(tarEntry.getName(), "/");
-                    if(StringUtils.isBlank(fileName)) {
-                        fileName = StringUtils.substringAfterLast(tarEntry.getName(), "\\");
-                    }
-                    f = new File(baseDir, fileName);
-                }
+    private static <T> T waitFor(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException2(e);
+        }
+    }
 
-                // dir processing
-                if(!flatten && tarEntry.isDirectory()) {
-                    f.mkdirs();
-                }
-                // file processing
-                else {
-                    if(!flatten && f.getParentFile() != null) {
-                        f.getParentFile().mkdirs();
-                    }
+    /**
+     * Splits {@code paths} into at most {@code count} partitions of about the
+     * same total size.
+     *
+     * <p>Biggest files are dispatched first, each one going to the partition
+     * which is the smallest at that time.</p>
+     */
+    static List<List<String>> partition(FileManifest manifest, List<String> paths, int count) {
+        count = Math.max(1, Math.min(count, paths.size()));
+        List<List<String>> partitions = new ArrayList<List<String>>(count);
+        if(count == 1) {
+            partitions.add(paths);
+            return partitions;
+        }
 
-                    IOUtils.copy(t, f);
-
-                    f.setLastModified(tarEntry.getModTime().getTime());
-
-                    // chmod
-                    int mode = tarEntry.getMode()&0777;
-                    if(mode!=0 && !Functions.isWindows()) // be defensive
-                        try {
-                            LIBC.chmod(f.getPath(), mode);
-                        } catch (NoClassDefFoundError ncdfe) {
-                            // be defensive. see http://www.nabble.com/-3.0.6--Site-copy-problem%3A-hudson.util.IOException2%3A--java.lang.NoClassDefFoundError%3A-Could-not-initialize-class--hudson.util.jna.GNUCLibrary-td23588879.html
-                        } catch (UnsatisfiedLinkError ule) {
-                            // HUDSON-8155: use Ant's chmod task
-                            if(chmodTask == null) {
-                                chmodTask = new Chmod();
-                            }
-                            chmodTask.setProject(new Project());
-                            chmodTask.setFile(f);
-                            chmodTask.setPerm(Integer.toOctalString(mode));
-                            chmodTask.execute();
-                        }
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        for(FileManifest.Entry entry : manifest.getEntries()) {
+            sizes.put(entry.getPath(), entry.getSize());
+        }
+        List<String> sorted = new ArrayList<String>(paths);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String p1, String p2) {
+                long s1 = size(sizes, p1), s2 = size(sizes, p2);
+                return s1 > s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+        });
+
+        long[] totals = new long[count];
+        for(int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<String>());
+        }
+        for(String path : sorted) {
+            int smallest = 0;
+            for(int i = 1; i < count; i++) {
+                if(totals[i] < totals[smallest]) {
+                    smallest = i;
                 }
             }
-        } catch(IOException e) {
-            throw new IOException2("Failed to extract to "+baseDir.getAbsolutePath(),e);
-        } finally {
-            t.close();
+            partitions.get(smallest).add(path);
+            totals[smallest] += size(sizes, path);
         }
+        return partitions;
+    }
+
+    private static long size(Map<String, Long> sizes, String path) {
+        Long size = sizes.get(path);
+        return size != null ? size : 0;
+    }
+
+    /**
+     * Enhanced version of Hudson's {@link FilePath#readFromTar} method (mainly
+     * the flatten behavior).
+     *
+     * @see hudson.FilePath#readFromTar(java.lang.String, java.io.File, java.io.InputStream) 
+     */
+    public static void readFromTar(File baseDir, boolean flatten, InputStream in) throws IOException {
+        readFromTar(baseDir, flatten, in, null);
+    }
+
+    /**
+     * Same as {@link #readFromTar(File, boolean, InputStream)} but stores the
+     * extracted files in the given file cache (if not {@code null}) too.
+     *
+     * @see TarExtractor
+     */
+    public static void readFromTar(File baseDir, boolean flatten, InputStream in, SlaveFileCache.Config cacheConfig) throws IOException {
+        readFromTar(baseDir, flatten, in, cacheConfig, ArchiveFormat.TAR);
+    }
+
+    /**
+     * Same as {@link #readFromTar(File, boolean, InputStream, SlaveFileCache.Config)}
+     * but reads an archive of the given format.
+     */
+    public static void readFromTar(File baseDir, boolean flatten, InputStream in, SlaveFileCache.Config cacheConfig, ArchiveFormat format) throws IOException {
+        new TarExtractor(baseDir, flatten, cacheConfig, format).extract(in);
     }
 
     /**
      * Full copy/paste of Hudson's {@link FilePath#writeToTar} method with some
-     * tweaking (added an includeAntExcludes parameter).
+     * tweaking (added an includeAntExcludes parameter, uses {@link MyTarArchiver}).
      *
      * @see hudson.FilePath#writeToTar(java.lang.String, java.io.File, java.io.InputStream)
      */
     public static Integer writeToTar(File baseDir, String includes, String excludes, boolean includeAntExcludes, OutputStream out) throws IOException {
-        Archiver tw = ArchiverFactory.TAR.create(out);
+        return writeToTar(baseDir, includes, excludes, includeAntExcludes, new MyTarArchiver(out));
+    }
+
+    /**
+     * Same as {@link #writeToTar(File, String, String, boolean, OutputStream)}
+     * but uses the given archiver, cf. {@link ArchiveFormat#createArchiver}.
+     */
+    public static Integer writeToTar(File baseDir, String includes, String excludes, boolean includeAntExcludes, Archiver tw) throws IOException {
         try {
             new MyGlobDirScanner(includes, excludes, includeAntExcludes).scan(baseDir, tw);  // HUDSON-7999
         } finally {
@@ -232,4 +475,216 @@ public class MyFilePath implements Serializable {
         return tw.countEntries();
     }
 
+    /**
+     * Same as {@link #writeToTar(File, String, String, boolean, OutputStream)}
+     * but archives the given files (relative to {@code baseDir}) instead of
+     * scanning {@code baseDir}.
+     */
+    public static Integer writeToTar(File baseDir, Collection<String> paths, OutputStream out) throws IOException {
+        return writeToTar(baseDir, paths, new MyTarArchiver(out));
+    }
+
+    /**
+     * Same as {@link #writeToTar(File, Collection, OutputStream)} but uses the
+     * given archiver, cf. {@link ArchiveFormat#createArchiver}.
+     */
+    public static Integer writeToTar(File baseDir, Collection<String> paths, Archiver tw) throws IOException {
+        try {
+            for(String path : paths) {
+                tw.visit(new File(baseDir, path), path);
+            }
+        } finally {
+            tw.close();
+        }
+        return tw.countEntries();
+    }
+
+    /**
+     * Writes a tar archive of the source side of a copy to a pipe.
+     */
+    private static class Archive implements FileCallable<TransferStatistics> {
+
+        private static final long serialVersionUID = 1;
+
+        private final Pipe pipe;
+        private final String includes;
+        private final String excludes;
+        private final boolean includeAntExcludes;
+        private final List<String> paths;
+        private final boolean flatten;
+        private final TransferOptions options;
+
+        /**
+         * @param paths the files to be archived, or {@code null} to scan the
+         *        base directory using {@code includes}, {@code excludes} and
+         *        {@code includeAntExcludes}
+         * @param flatten if the target side flattens the archive, in which
+         *        case duplicates aren't archived as references: The file
+         *        they refer to may be overwritten by another one
+         */
+        Archive(Pipe pipe, String includes, String excludes, boolean includeAntExcludes, Collection<String> paths, boolean flatten, TransferOptions options) {
+            this.pipe = pipe;
+            this.includes = includes;
+            this.excludes = excludes;
+            this.includeAntExcludes = includeAntExcludes;
+            this.paths = paths != null ? new ArrayList<String>(paths) : null;
+            this.flatten = flatten;
+            this.options = options;
+        }
+
+        public TransferStatistics invoke(File baseDir, VirtualChannel channel) throws IOException {
+            long start = System.currentTimeMillis();
+            OutputStream out = pipe.getOut();
+            if(options.getThrottle() != null) { // only set when running on the master
+                out = options.getThrottle().wrap(out);
+            }
+            CountingOutputStream wire = new CountingOutputStream(out);
+            out = options.getCodec().compress(wire, options.getCompressionLevel());
+
+            int files;
+            if(paths != null) {
+                files = writeToTar(baseDir, paths, options.getArchiveFormat().createArchiver(out, !flatten));
+            }
+            else {
+                files = writeToTar(baseDir, includes, excludes, includeAntExcludes, options.getArchiveFormat().createArchiver(out, !flatten));
+            }
+
+            TransferStatistics statistics = new TransferStatistics();
+            statistics.addFilesSent(files);
+            statistics.addWireBytes(wire.getByteCount());
+            statistics.addRawBytes(out instanceof TransferCodec.LevelGZIPOutputStream
+                    ? ((TransferCodec.LevelGZIPOutputStream) out).getRawBytes() : wire.getByteCount());
+            statistics.addArchiveTime(System.currentTimeMillis() - start);
+            return statistics;
+        }
+
+    }
+
+    /**
+     * Extracts what's sent through a pipe to the target side of a copy.
+     */
+    private static class Extract implements FileCallable<TransferStatistics> {
+
+        private static final long serialVersionUID = 1;
+
+        private final Pipe pipe;
+        private final boolean flatten;
+        private final TransferOptions options;
+
+        Extract(Pipe pipe, boolean flatten, TransferOptions options) {
+            this.pipe = pipe;
+            this.flatten = flatten;
+            this.options = options;
+        }
+
+        public TransferStatistics invoke(File baseDir, VirtualChannel channel) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                InputStream in = pipe.getIn();
+                if(options.getThrottle() != null) { // only set when running on the master
+                    in = options.getThrottle().wrap(in);
+                }
+                readFromTar(baseDir, flatten, options.getCodec().extract(in), options.getCache(), options.getArchiveFormat());
+
+                TransferStatistics statistics = new TransferStatistics();
+                statistics.addExtractTime(System.currentTimeMillis() - start);
+                return statistics;
+            } finally {
+                pipe.getIn().close();
+            }
+        }
+
+    }
+
+    /**
+     * Builds the {@link FileManifest} of the source side of a copy, leaving
+     * out the files which are not {@link TransferOptions#getMinAge() old}
+     * enough.
+     */
+    static class BuildManifest implements FileCallable<FileManifest> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String includes;
+        private final String excludes;
+        private final boolean includeAntExcludes;
+        private final boolean flatten;
+        private final boolean computeDigests;
+        private final long minAge;
+
+        BuildManifest(String includes, String excludes, boolean includeAntExcludes, boolean flatten, boolean computeDigests, long minAge) {
+            this.includes = includes;
+            this.excludes = excludes;
+            this.includeAntExcludes = includeAntExcludes;
+            this.flatten = flatten;
+            this.computeDigests = computeDigests;
+            this.minAge = minAge;
+        }
+
+        public FileManifest invoke(File baseDir, VirtualChannel channel) throws IOException {
+            FileManifest manifest = FileManifest.build(baseDir, includes, excludes, includeAntExcludes, flatten, computeDigests);
+            if(minAge > 0) {
+                manifest.removeModifiedAfter(System.currentTimeMillis() - minAge); // the clock of this node, not the master's one
+            }
+            return manifest;
+        }
+
+    }
+
+    /**
+     * Run on the target side of a copy to get the source paths of the files
+     * from a {@link FileManifest} which are missing or out of date.
+     *
+     * <p>Files which are available in the file cache of the target node are
+     * taken from there and are thus not reported.</p>
+     *
+     * <p>Files which are not listed by the {@link TargetManifest} of the
+     * target directory, if it's to be used, are reported without being
+     * looked for.</p>
+     */
+    static class ListOutdatedFiles implements FileCallable<List<String>> {
+
+        private static final long serialVersionUID = 1;
+
+        private final FileManifest manifest;
+        private final TransferOptions options;
+
+        ListOutdatedFiles(FileManifest manifest, TransferOptions options) {
+            this.manifest = manifest;
+            this.options = options;
+        }
+
+        public List<String> invoke(File baseDir, VirtualChannel channel) throws IOException {
+            SlaveFileCache cache = options.getCache() != null ? SlaveFileCache.get(options.getCache()) : null;
+            Map<String, String> journal = options.isResumable()
+                    ? ResumableTransfer.loadJournal(baseDir) : Collections.<String, String>emptyMap();
+            Map<String, String> present = options.isUseTargetManifest() ? TargetManifest.load(baseDir) : null;
+
+            List<String> outdated = new ArrayList<String>();
+            FileMetadata metadata = new FileMetadata();
+            for(Map.Entry<String, FileManifest.Entry> e : manifest.getEntriesByTargetPath().entrySet()) {
+                FileManifest.Entry entry = e.getValue();
+                File f = new File(baseDir, e.getKey());
+
+                if(options.isDeltaSync() && (present == null || present.containsKey(e.getKey())) && entry.isUpToDate(f)) {
+                    continue;
+                }
+                if(ResumableTransfer.isCommitted(journal, e.getKey(), entry, f)) {
+                    continue; // sent by a previous copy which failed afterwards
+                }
+                if(cache != null && entry.getDigest() != null) {
+                    f.getParentFile().mkdirs();
+                    if(cache.materialize(entry.getDigest(), f)) {
+                        metadata.add(f, entry.getLastModified(), entry.getMode());
+                        continue;
+                    }
+                }
+                outdated.add(entry.getPath());
+            }
+            metadata.apply();
+            return outdated;
+        }
+
+    }
+
 }
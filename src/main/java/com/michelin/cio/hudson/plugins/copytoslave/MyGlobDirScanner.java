@@ -24,17 +24,31 @@
  */
 package com.michelin.cio.hudson.plugins.copytoslave;
 
+import hudson.Functions;
 import hudson.Util;
+import hudson.os.PosixAPI;
 import hudson.util.DirScanner;
 import hudson.util.FileVisitor;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
 import org.apache.tools.ant.DirectoryScanner;
-import org.apache.tools.ant.types.FileSet;
 
 /**
  * Modified copy of  Hudson's {@link DirScanner.Glob} to modify the {@code scan()}
  * method so that it takes into account Ant's default excludes (cf. HUDSON-7999).
+ *
+ * <p>Unlike Ant's {@link DirectoryScanner}, the tree is not fully scanned
+ * before the first file gets visited: Files are handed to the
+ * {@link FileVisitor} as soon as they're found, so that archiving them goes
+ * along with the scan, and directories which can't hold any matching file are
+ * not walked into. Matching rules are the same as Ant's ones, patterns being
+ * {@link CompiledPatterns compiled} once for all.</p>
  */
 public class MyGlobDirScanner extends DirScanner {
 
@@ -49,25 +63,143 @@ public class MyGlobDirScanner extends DirScanner {
     }
 
     public void scan(File dir, FileVisitor visitor) throws IOException {
-        if(Util.fixEmpty(includes)==null && excludes==null) {
+        boolean full = Util.fixEmpty(includes)==null && excludes==null;
+        if(full && !(visitor instanceof DirectoryObserver)) {
             // optimization
             new Full().scan(dir, visitor);
             return;
         }
 
-        FileSet fs = Util.createFileSet(dir,includes,excludes);
+        if(dir.exists()) {
+            List<String> includePatterns = tokenize(includes);
+            if(includePatterns.isEmpty()) {
+                includePatterns.add("**"); // same as Ant
+            }
+            List<String> excludePatterns = tokenize(excludes);
+            if(!includeAntExcludes && !full) { // Full does not apply them either
+                excludePatterns.addAll(tokenize(DirectoryScanner.getDefaultExcludes())); // HUDSON-7999
+            }
 
-        if(includeAntExcludes) {
-            fs.setDefaultexcludes(false); // HUDSON-7999
+            new Walker(
+                    CompiledPatterns.compile(includePatterns),
+                    CompiledPatterns.compile(excludePatterns),
+                    visitor).walk(dir, "", dir.getCanonicalPath());
         }
+    }
 
-        if(dir.exists()) {
-            DirectoryScanner ds = fs.getDirectoryScanner(new org.apache.tools.ant.Project());
-            for(String f : ds.getIncludedFiles()) {
-                File file = new File(dir, f);
-                visitor.visit(file,f);
+    /**
+     * Splits patterns the same way {@link Util#createFileSet} does, and
+     * normalizes them the same way Ant does.
+     */
+    private static List<String> tokenize(String patterns) {
+        List<String> tokens = new ArrayList<String>();
+        if(patterns != null) {
+            StringTokenizer tokenizer = new StringTokenizer(patterns, ",");
+            while(tokenizer.hasMoreTokens()) {
+                String token = tokenizer.nextToken().trim();
+                if(token.length() > 0) {
+                    tokens.add(token);
+                }
+            }
+        }
+        return tokenize(tokens.toArray(new String[tokens.size()]));
+    }
+
+    private static List<String> tokenize(String[] patterns) {
+        List<String> tokens = new ArrayList<String>(patterns.length);
+        for(String pattern : patterns) {
+            pattern = pattern.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+            if(pattern.endsWith(File.separator)) {
+                pattern += "**";
+            }
+            tokens.add(pattern);
+        }
+        return tokens;
+    }
+
+    /**
+     * Implemented by the {@link FileVisitor}s which want to know about the
+     * directories which have been walked into (whose content has been
+     * listed) too.
+     */
+    interface DirectoryObserver {
+        void walked(File dir);
+    }
+
+    /**
+     * Depth-first walk of a tree.
+     */
+    private static class Walker {
+
+        private final CompiledPatterns includes;
+        private final CompiledPatterns excludes;
+        private final FileVisitor visitor;
+        /**
+         * Canonical paths of the directory being walked and of its ancestors,
+         * to not loop forever on symbolic links; A directory reached through
+         * several links elsewhere in the tree is walked each time, as Ant does.
+         */
+        private final Set<String> ancestors = new HashSet<String>();
+
+        Walker(CompiledPatterns includes, CompiledPatterns excludes, FileVisitor visitor) {
+            this.includes = includes;
+            this.excludes = excludes;
+            this.visitor = visitor;
+        }
+
+        void walk(File dir, String relativePath, String canonicalPath) throws IOException {
+            if(!ancestors.add(canonicalPath)) {
+                return; // loop
+            }
+            try {
+                walkChildren(dir, relativePath, canonicalPath);
+            } finally {
+                ancestors.remove(canonicalPath);
+            }
+        }
+
+        private void walkChildren(File dir, String relativePath, String canonicalPath) throws IOException {
+            String[] children = dir.list();
+            if(children == null) {
+                return; // not readable
+            }
+            Arrays.sort(children); // stable order, whatever the file system
+
+            if(visitor instanceof DirectoryObserver) {
+                ((DirectoryObserver) visitor).walked(dir);
+            }
+
+            for(String child : children) {
+                File f = new File(dir, child);
+                String path = relativePath + child;
+                if(f.isDirectory()) {
+                    if(includes.couldMatchBelow(path) && !excludes.matchesAllBelow(path)) {
+                        // only symbolic links need to be resolved
+                        walk(f, path + File.separatorChar,
+                                isSymlink(f) ? f.getCanonicalPath() : canonicalPath + File.separatorChar + child);
+                    }
+                }
+                else if(includes.matches(path) && !excludes.matches(path)) {
+                    visitor.visit(f, path);
+                }
             }
         }
+
+        /**
+         * Tells if {@code f} is a symbolic link, using a single {@code lstat}
+         * when possible.
+         */
+        private static boolean isSymlink(File f) throws IOException {
+            if(!Functions.isWindows()) {
+                try {
+                    return PosixAPI.get().lstat(f.getPath()).isSymlink();
+                } catch (Throwable t) {
+                    // be defensive: the native API may not be usable, fall back to Java
+                }
+            }
+            return Util.isSymlink(f);
+        }
+
     }
 
 }
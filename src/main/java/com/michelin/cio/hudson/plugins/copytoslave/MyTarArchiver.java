@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2013, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ * Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Functions;
+import hudson.util.IOUtils;
+import hudson.util.io.Archiver;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * Copy of Hudson's {@code hudson.util.io.TarArchiver} (which is not public)
+ * which tells the compression stream it writes to (if any) about the files
+ * being archived, cf. {@link TransferCodec#AUTO}.
+ *
+ * <p>When deduplicating, a file whose content has already been archived (cf.
+ * {@link DuplicateFinder}) is archived as a hard link entry referring to the
+ * first one, cf. {@link TarExtractor}.</p>
+ */
+public class MyTarArchiver extends Archiver {
+
+    private final byte[] buf = new byte[8192];
+    private final TarOutputStream tar;
+    private final TransferCodec.LevelGZIPOutputStream compression;
+    /** {@code null} when not deduplicating. */
+    private final DuplicateFinder duplicates;
+
+    public MyTarArchiver(OutputStream out) {
+        this(out, false);
+    }
+
+    public MyTarArchiver(OutputStream out, boolean deduplicate) {
+        tar = new TarOutputStream(new BufferedOutputStream(out) {
+            // TarOutputStream uses TarBuffer internally, which flushes the
+            // stream for each block: This creates unnecessary data stream
+            // fragmentation, and flush requests to a remote
+            @Override
+            public void flush() throws IOException {
+                // so don't do anything in flush
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.flush();
+                this.out.close();
+            }
+        });
+        tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+        compression = out instanceof TransferCodec.LevelGZIPOutputStream ? (TransferCodec.LevelGZIPOutputStream) out : null;
+        duplicates = deduplicate ? new DuplicateFinder() : null;
+    }
+
+    public void visit(File file, String relativePath) throws IOException {
+        if(Functions.isWindows()) {
+            relativePath = relativePath.replace('\\', '/');
+        }
+
+        if(file.isDirectory()) {
+            relativePath += '/';
+        }
+
+        String original = duplicates != null && !file.isDirectory() ? duplicates.findOriginal(file, relativePath) : null;
+        if(original != null) {
+            TarEntry link = new TarEntry(relativePath, TarConstants.LF_LINK);
+            link.setLinkName(original);
+            int mode = IOUtils.mode(file);
+            if(mode != -1) {
+                link.setMode(mode);
+            }
+            link.setModTime(file.lastModified());
+            tar.putNextEntry(link);
+            tar.closeEntry();
+            entriesWritten++;
+            return;
+        }
+
+        TarEntry te = new TarEntry(relativePath);
+        int mode = IOUtils.mode(file);
+        if(mode != -1) {
+            te.setMode(mode);
+        }
+        te.setModTime(file.lastModified());
+        if(!file.isDirectory()) {
+            te.setSize(file.length());
+        }
+
+        if(compression != null) {
+            compression.startEntry(file.getName());
+        }
+
+        tar.putNextEntry(te);
+
+        if(!file.isDirectory()) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int len;
+                while((len = in.read(buf)) >= 0) {
+                    tar.write(buf, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        tar.closeEntry();
+        entriesWritten++;
+    }
+
+    public void close() throws IOException {
+        tar.close();
+    }
+
+}
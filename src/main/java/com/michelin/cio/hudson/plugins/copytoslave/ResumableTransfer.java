@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Copy split into segments which are committed one after the other on the
+ * target node, so that a failed copy can be resumed.
+ *
+ * <p>Each segment (a group of files of about {@link TransferOptions#getSegmentSize()}
+ * bytes) is extracted into a staging directory next to the target directory.
+ * The target node then checks the size and MD5 checksum of each staged file
+ * against the manifest of the source, moves the files into place and records
+ * them in a journal: This is the acknowledgment of the segment. A segment
+ * which fails is sent again, up to {@link TransferOptions#getRetries()} times.</p>
+ *
+ * <p>If the copy fails anyway, the journal is kept: The files it lists are not
+ * sent again by the next copy, as long as they haven't changed on either side.
+ * The staging directory is deleted once a copy completes.</p>
+ */
+public class ResumableTransfer {
+
+    public static int copy(
+            FilePath source, String includes, String excludes, boolean flatten, boolean includeAntExcludes,
+            FilePath target, TransferOptions options) throws IOException, InterruptedException {
+        TransferStatistics statistics = options.getStatistics();
+
+        long start = System.currentTimeMillis();
+        FileManifest manifest = MyFilePath.buildManifest(source, includes, excludes, includeAntExcludes, flatten, true, options.getMinAge());
+        statistics.addScanTime(System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        List<String> paths = target.act(new MyFilePath.ListOutdatedFiles(manifest, options));
+        statistics.addNegotiationTime(System.currentTimeMillis() - start);
+        statistics.addFilesSkipped(manifest.size() - paths.size());
+
+        start = System.currentTimeMillis();
+        try {
+            int r = 0;
+            for(List<String> segment : segment(manifest, paths, options.getSegmentSize())) {
+                r += send(source, manifest, segment, flatten, target, options);
+            }
+            target.act(new DeleteStaging());
+            return r;
+        } finally {
+            statistics.addTransferTime(System.currentTimeMillis() - start);
+        }
+    }
+
+    private static int send(
+            FilePath source, FileManifest manifest, List<String> segment, boolean flatten,
+            FilePath target, TransferOptions options) throws IOException, InterruptedException {
+        Map<String, FileManifest.Entry> entries = new LinkedHashMap<String, FileManifest.Entry>();
+        for(String path : segment) {
+            entries.put(FileManifest.getTargetPath(path, flatten), null);
+        }
+        for(Map.Entry<String, FileManifest.Entry> e : manifest.getEntriesByTargetPath().entrySet()) {
+            if(entries.containsKey(e.getKey())) {
+                entries.put(e.getKey(), e.getValue());
+            }
+        }
+
+        for(int attempt = 0; ; attempt++) {
+            try {
+                FilePath staging = new FilePath(target.getChannel(), target.act(new PrepareStaging()));
+                int r = MyFilePath.transfer(source, manifest, segment, flatten, staging, options);
+                target.act(new CommitSegment(new HashMap<String, FileManifest.Entry>(entries)));
+                return r;
+            } catch (IOException e) {
+                if(attempt >= options.getRetries()) {
+                    throw e;
+                }
+                options.getStatistics().addRetries(1);
+                LOGGER.log(Level.WARNING, "Failed to copy a segment from " + source + " to " + target + ", retrying", e);
+            }
+        }
+    }
+
+    /**
+     * Splits {@code paths} into consecutive segments of at least
+     * {@code segmentSize} bytes (but the last one).
+     */
+    static List<List<String>> segment(FileManifest manifest, List<String> paths, long segmentSize) {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        for(FileManifest.Entry entry : manifest.getEntries()) {
+            sizes.put(entry.getPath(), entry.getSize());
+        }
+
+        List<List<String>> segments = new ArrayList<List<String>>();
+        List<String> current = new ArrayList<String>();
+        long currentSize = 0;
+        for(String path : paths) {
+            current.add(path);
+            Long size = sizes.get(path);
+            currentSize += size != null ? size : 0;
+            if(currentSize >= segmentSize) {
+                segments.add(current);
+                current = new ArrayList<String>();
+                currentSize = 0;
+            }
+        }
+        if(!current.isEmpty()) {
+            segments.add(current);
+        }
+        return segments;
+    }
+
+    /**
+     * Returns the staging directory of the given target directory.
+     */
+    static File getStagingDir(File baseDir) {
+        File parent = baseDir.getAbsoluteFile().getParentFile();
+        if(parent == null) {
+            return new File(baseDir, STAGING_SUFFIX);
+        }
+        return new File(parent, baseDir.getName() + STAGING_SUFFIX);
+    }
+
+    /**
+     * Loads the journal of the given target directory: Target path of the
+     * committed files -> {@link #toJournalLine} of their entry.
+     */
+    static Map<String, String> loadJournal(File baseDir) throws IOException {
+        File journal = new File(getStagingDir(baseDir), JOURNAL);
+        if(!journal.isFile()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> committed = new HashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                int i = line.indexOf('\t');
+                if(i > 0) {
+                    committed.put(line.substring(0, i), line.substring(i + 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return committed;
+    }
+
+    /**
+     * Tells if the journal of the target directory says that {@code f} has
+     * been committed with the content described by {@code entry}.
+     */
+    static boolean isCommitted(Map<String, String> journal, String targetPath, FileManifest.Entry entry, File f) {
+        String line = journal.get(targetPath);
+        return line != null && line.equals(toJournalLine(entry))
+                && f.isFile() && f.length() == entry.getSize() && f.lastModified() / 1000 == entry.getLastModified() / 1000;
+    }
+
+    private static String toJournalLine(FileManifest.Entry entry) {
+        return entry.getSize() + "\t" + entry.getLastModified() + '\t' + entry.getDigest();
+    }
+
+    /**
+     * Empties the directory segments are extracted to and returns its path.
+     */
+    private static class PrepareStaging implements FileCallable<String> {
+
+        private static final long serialVersionUID = 1;
+
+        public String invoke(File baseDir, VirtualChannel channel) throws IOException {
+            File data = new File(getStagingDir(baseDir), DATA);
+            if(data.exists()) {
+                Util.deleteContentsRecursive(data);
+            }
+            else if(!data.mkdirs()) {
+                throw new IOException("Failed to create " + data);
+            }
+            return data.getAbsolutePath();
+        }
+
+    }
+
+    /**
+     * Checks the staged files of a segment, moves them into place and records
+     * them in the journal.
+     */
+    private static class CommitSegment implements FileCallable<Void> {
+
+        private static final long serialVersionUID = 1;
+
+        private final HashMap<String, FileManifest.Entry> entries;
+
+        CommitSegment(HashMap<String, FileManifest.Entry> entries) {
+            this.entries = entries;
+        }
+
+        public Void invoke(File baseDir, VirtualChannel channel) throws IOException {
+            File staging = getStagingDir(baseDir);
+            File data = new File(staging, DATA);
+
+            for(Map.Entry<String, FileManifest.Entry> e : entries.entrySet()) {
+                File staged = new File(data, e.getKey());
+                FileManifest.Entry entry = e.getValue();
+                if(!staged.isFile() || staged.length() != entry.getSize()) {
+                    throw new IOException("Missing or truncated file in the staging area: " + staged);
+                }
+                if(entry.getDigest() != null && !entry.getDigest().equals(FileManifest.digest(staged))) {
+                    throw new IOException("Checksum mismatch for " + staged);
+                }
+            }
+
+            FileOutputStream journal = new FileOutputStream(new File(staging, JOURNAL), true);
+            try {
+                Writer w = new OutputStreamWriter(journal, "UTF-8");
+                for(Map.Entry<String, FileManifest.Entry> e : entries.entrySet()) {
+                    File staged = new File(data, e.getKey());
+                    File f = new File(baseDir, e.getKey());
+                    f.getParentFile().mkdirs();
+                    f.delete();
+                    if(!staged.renameTo(f)) { // the staging area is not on the same file system
+                        FileUtils.copyFile(staged, f);
+                        staged.delete();
+                    }
+                    w.write(e.getKey() + '\t' + toJournalLine(e.getValue()) + '\n');
+                }
+                w.flush();
+                journal.getFD().sync();
+            } finally {
+                journal.close();
+            }
+            return null;
+        }
+
+    }
+
+    private static class DeleteStaging implements FileCallable<Void> {
+
+        private static final long serialVersionUID = 1;
+
+        public Void invoke(File baseDir, VirtualChannel channel) throws IOException {
+            File staging = getStagingDir(baseDir);
+            if(staging.exists()) {
+                Util.deleteRecursive(staging);
+            }
+            return null;
+        }
+
+    }
+
+    private final static String STAGING_SUFFIX = "@copy-to-slave-staging";
+    private final static String DATA = "data";
+    private final static String JOURNAL = "journal";
+
+    private final static Logger LOGGER = Logger.getLogger(ResumableTransfer.class.getName());
+
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.FilePath;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Detects slaves which see a directory of the master at the same path (e.g.
+ * {@code JENKINS_HOME} mounted over NFS), so that files can be copied by the
+ * slave itself rather than being sent through the remoting channel.
+ *
+ * <p>The master writes a marker file holding a random token into the source
+ * directory, and the slave checks that it can read it at the same path. The
+ * outcome is remembered for a few minutes, per slave and per directory. The
+ * copy itself is done by {@link LocalCopyEngine}.</p>
+ */
+public class SharedFileSystem {
+
+    private SharedFileSystem() {
+    }
+
+    /**
+     * Tells if the local directory {@code source} is visible, at the same
+     * path, from the node of {@code target}.
+     */
+    public static boolean isShared(FilePath source, FilePath target) throws InterruptedException {
+        if(source.isRemote() || !target.isRemote()) {
+            return false;
+        }
+        VirtualChannel channel = target.getChannel();
+        String path = source.getRemote();
+
+        synchronized(PROBES) {
+            Map<String, Probe> probes = PROBES.get(channel);
+            Probe probe = probes != null ? probes.get(path) : null;
+            if(probe != null && System.currentTimeMillis() - probe.time < PROBE_VALIDITY) {
+                return probe.shared;
+            }
+        }
+
+        boolean shared = probe(new File(path), channel);
+        synchronized(PROBES) {
+            Map<String, Probe> probes = PROBES.get(channel);
+            if(probes == null) {
+                probes = new HashMap<String, Probe>();
+                PROBES.put(channel, probes);
+            }
+            probes.put(path, new Probe(shared));
+        }
+        return shared;
+    }
+
+    private static boolean probe(File dir, VirtualChannel channel) throws InterruptedException {
+        if(!dir.isDirectory()) {
+            return false;
+        }
+        String token = UUID.randomUUID().toString();
+        File marker = new File(dir, MARKER_PREFIX + token);
+        try {
+            FileUtils.writeStringToFile(marker, token, "UTF-8");
+            return channel.call(new CheckMarker(marker.getAbsolutePath(), token));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to check if " + dir + " is shared", e);
+            return false;
+        } finally {
+            marker.delete();
+        }
+    }
+
+    /**
+     * Run on the slave to check that it sees the marker written by the
+     * master.
+     */
+    private static class CheckMarker implements Callable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String path;
+        private final String token;
+
+        CheckMarker(String path, String token) {
+            this.path = path;
+            this.token = token;
+        }
+
+        public Boolean call() throws IOException {
+            File marker = new File(path);
+            return marker.isFile() && token.equals(FileUtils.readFileToString(marker, "UTF-8"));
+        }
+
+    }
+
+    private static class Probe {
+
+        final boolean shared;
+        final long time = System.currentTimeMillis();
+
+        Probe(boolean shared) {
+            this.shared = shared;
+        }
+
+    }
+
+    private final static Map<VirtualChannel, Map<String, Probe>> PROBES = new WeakHashMap<VirtualChannel, Map<String, Probe>>();
+    private final static long PROBE_VALIDITY = 5 * 60 * 1000; // 5 minutes
+    private final static String MARKER_PREFIX = ".copy-to-slave-probe-";
+
+    private final static Logger LOGGER = Logger.getLogger(SharedFileSystem.class.getName());
+
+}
@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Util;
+import hudson.util.IOUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store of files, local to a node, which is shared by all
+ * the copies targeting this node.
+ *
+ * <p>Files are stored under their MD5 checksum. The least recently used ones
+ * are evicted as soon as the size of the cache exceeds its limit. Workspace
+ * files are clones (or copies) of the cached ones, never hard links: Builds
+ * may modify them in place.</p>
+ *
+ * <p>There's only one instance per cache directory in a given JVM: Use
+ * {@link #get} to retrieve it.</p>
+ */
+public class SlaveFileCache {
+
+    public final static String DEFAULT_DIRECTORY_NAME = "copy-to-slave-cache";
+
+    private final File dir;
+    private long maxSize;
+    /** MD5 checksum -> size, in access order. */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size;
+
+    private SlaveFileCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        load();
+    }
+
+    public static SlaveFileCache get(Config config) {
+        synchronized(INSTANCES) {
+            File dir = new File(config.getDirectory());
+            SlaveFileCache cache = INSTANCES.get(dir);
+            if(cache == null) {
+                cache = new SlaveFileCache(dir, config.getMaxSize());
+                INSTANCES.put(dir, cache);
+            }
+            else {
+                cache.setMaxSize(config.getMaxSize());
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory index from the content of the cache directory,
+     * using the modification date of the files as a first approximation of
+     * their last use.
+     */
+    private synchronized void load() {
+        List<File> files = new ArrayList<File>();
+        File[] subDirs = dir.listFiles();
+        if(subDirs != null) {
+            for(File subDir : subDirs) {
+                File[] children = subDir.listFiles();
+                if(children != null) {
+                    for(File child : children) {
+                        if(child.getName().endsWith(TMP_SUFFIX)) {
+                            child.delete(); // leftover of an interrupted copy
+                        }
+                        else {
+                            files.add(child);
+                        }
+                    }
+                }
+            }
+        }
+
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long l1 = f1.lastModified(), l2 = f2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        for(File f : sorted) {
+            index.put(f.getName(), f.length());
+            size += f.length();
+        }
+    }
+
+    private synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public synchronized boolean contains(String digest) {
+        return index.get(digest) != null;
+    }
+
+    /**
+     * Makes {@code target} hold the cached file whose checksum is
+     * {@code digest}.
+     *
+     * @return {@code false} if the cache doesn't hold such a file
+     */
+    public boolean materialize(String digest, File target) throws IOException {
+        File cached;
+        synchronized(this) {
+            if(index.get(digest) == null) { // also marks the entry as used
+                return false;
+            }
+            cached = getFile(digest);
+        }
+        if(!cached.isFile()) { // somebody cleaned the cache up behind our back
+            synchronized(this) {
+                forget(digest);
+            }
+            return false;
+        }
+        FileLinker.link(cached, target, FileLinker.Strategy.REFLINK);
+        return true;
+    }
+
+    /**
+     * Stores the content of {@code in} (read till its end) in the cache and
+     * makes {@code target} hold it.
+     *
+     * @return the MD5 checksum of the stored content
+     */
+    public String store(InputStream in, File target) throws IOException {
+        File subDir = new File(dir, "tmp");
+        subDir.mkdirs();
+        File tmp = File.createTempFile("store", TMP_SUFFIX, subDir);
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        OutputStream out = new DigestOutputStream(new FileOutputStream(tmp), md5);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            out.close();
+        }
+        String digest = Util.toHexString(md5.digest());
+
+        File cached = getFile(digest);
+        synchronized(this) {
+            if(index.get(digest) == null || !cached.isFile()) {
+                cached.getParentFile().mkdirs();
+                cached.delete();
+                if(!tmp.renameTo(cached)) {
+                    tmp.delete();
+                    throw new IOException("Failed to move " + tmp + " to " + cached);
+                }
+                index.put(digest, cached.length());
+                size += cached.length();
+            }
+            else {
+                tmp.delete();
+            }
+        }
+
+        FileLinker.link(cached, target, FileLinker.Strategy.REFLINK);
+
+        synchronized(this) {
+            evict();
+        }
+        return digest;
+    }
+
+    private File getFile(String digest) {
+        return new File(new File(dir, digest.substring(0, 2)), digest);
+    }
+
+    private void forget(String digest) {
+        Long removed = index.remove(digest);
+        if(removed != null) {
+            size -= removed;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while(size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if(getFile(eldest.getKey()).delete() || !getFile(eldest.getKey()).exists()) {
+                size -= eldest.getValue();
+                it.remove();
+            }
+            else {
+                LOGGER.warning("Failed to evict " + eldest.getKey() + " from " + dir);
+            }
+        }
+    }
+
+    /**
+     * Where the cache lives on the node and how big it can grow; Sent over to
+     * the node along with the copy.
+     */
+    public static class Config implements Serializable {
+
+        private static final long serialVersionUID = 1;
+
+        private final String directory;
+        private final long maxSize;
+
+        public Config(String directory, long maxSize) {
+            this.directory = directory;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Absolute path of the cache directory, on the node.
+         */
+        public String getDirectory() {
+            return directory;
+        }
+
+        /**
+         * Maximum size of the cache, in bytes.
+         */
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+    }
+
+    private final static String TMP_SUFFIX = ".tmp";
+    private final static Map<File, SlaveFileCache> INSTANCES = new HashMap<File, SlaveFileCache>();
+
+    private final static Logger LOGGER = Logger.getLogger(SlaveFileCache.class.getName());
+
+}
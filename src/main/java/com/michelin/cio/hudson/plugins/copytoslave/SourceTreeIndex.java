@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index, on the master, of the files matched by the previous scans of the
+ * source directories of the copies, so that unchanged trees don't need to be
+ * walked again and unchanged files don't need to be checksummed again.
+ *
+ * <p>An index entry records the directories which have been walked into,
+ * along with their modification date, and the files which have been matched.
+ * As adding, removing or renaming a file changes the modification date of its
+ * directory, the entry is still valid as long as these directories keep the
+ * same date: Only the matched files then need to be looked at again, for
+ * their size and modification date. Directories modified right before the
+ * scan are not trusted, as the resolution of their date may hide later
+ * modifications. Checksums are kept as long as the size and the modification
+ * date of their file don't change.</p>
+ *
+ * <p>Entries which haven't been used for a while are dropped by
+ * {@link Cleaner}.</p>
+ */
+public class SourceTreeIndex {
+
+    /** Scans, in access order. */
+    private final LinkedHashMap<String, Scan> scans = new LinkedHashMap<String, Scan>(16, 0.75f, true);
+    /** Checksums by absolute path, in access order. */
+    private final LinkedHashMap<String, Digest> digests = new LinkedHashMap<String, Digest>(16, 0.75f, true);
+
+    public static SourceTreeIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Same as {@link FileManifest#build} but answered from the index when
+     * the tree hasn't changed since the previous scan.
+     */
+    public FileManifest getManifest(File baseDir, String includes, String excludes,
+            boolean includeAntExcludes, boolean flatten, boolean computeDigests) throws IOException {
+        String key = baseDir.getAbsolutePath() + '\n' + includes + '\n' + excludes + '\n' + includeAntExcludes;
+        Scan scan;
+        synchronized(this) {
+            scan = scans.get(key);
+        }
+        if(scan == null || !scan.isUpToDate()) {
+            scan = new Scan(baseDir, includes, excludes, includeAntExcludes);
+            synchronized(this) {
+                scans.put(key, scan);
+                evict(scans, MAX_SCANS);
+            }
+        }
+
+        FileManifest manifest = new FileManifest(flatten);
+        for(Map.Entry<String, File> e : scan.files.entrySet()) {
+            File f = e.getValue();
+            long size = f.length(), lastModified = f.lastModified();
+            if(lastModified == 0) {
+                continue; // deleted meanwhile
+            }
+            manifest.add(new FileManifest.Entry(
+                    e.getKey(), size, lastModified, IOUtils.mode(f),
+                    computeDigests ? getDigest(f, size, lastModified) : null));
+        }
+        scan.lastUsed = System.currentTimeMillis();
+        return manifest;
+    }
+
+    private String getDigest(File f, long size, long lastModified) throws IOException {
+        String path = f.getAbsolutePath();
+        synchronized(this) {
+            Digest digest = digests.get(path);
+            if(digest != null && digest.size == size && digest.lastModified == lastModified) {
+                return digest.value;
+            }
+        }
+        String value = FileManifest.digest(f);
+        synchronized(this) {
+            digests.put(path, new Digest(size, lastModified, value));
+            evict(digests, MAX_DIGESTS);
+        }
+        return value;
+    }
+
+    /**
+     * Drops the scans which haven't been used for a while.
+     */
+    public synchronized void clean() {
+        long now = System.currentTimeMillis();
+        Iterator<Scan> it = scans.values().iterator();
+        while(it.hasNext()) {
+            if(now - it.next().lastUsed > MAX_IDLE_TIME) {
+                it.remove();
+            }
+        }
+        if(scans.isEmpty()) {
+            digests.clear();
+        }
+    }
+
+    private static void evict(LinkedHashMap<?, ?> map, int maxSize) {
+        Iterator<?> it = map.keySet().iterator();
+        while(map.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * The outcome of a scan of a directory with a set of patterns.
+     */
+    private static class Scan extends FileVisitor implements MyGlobDirScanner.DirectoryObserver {
+
+        private final long time = System.currentTimeMillis();
+        /** Directories walked into, with their modification date or {@code -1} if it can't be trusted. */
+        private final List<File> dirs = new ArrayList<File>();
+        private final List<Long> dirDates = new ArrayList<Long>();
+        /** Matched files, by normalized relative path. */
+        private final Map<String, File> files = new LinkedHashMap<String, File>();
+        volatile long lastUsed = time;
+
+        Scan(File baseDir, String includes, String excludes, boolean includeAntExcludes) throws IOException {
+            new MyGlobDirScanner(includes, excludes, includeAntExcludes).scan(baseDir, this);
+            if(!baseDir.exists()) {
+                walked(baseDir); // detects its creation
+            }
+        }
+
+        @Override
+        public void visit(File f, String relativePath) {
+            if(!f.isDirectory()) {
+                files.put(FileManifest.normalize(relativePath), f);
+            }
+        }
+
+        public void walked(File dir) {
+            long lastModified = dir.lastModified();
+            dirs.add(dir);
+            dirDates.add(lastModified >= time - TIMESTAMP_RESOLUTION ? -1 : lastModified);
+        }
+
+        boolean isUpToDate() {
+            for(int i = 0; i < dirs.size(); i++) {
+                long date = dirDates.get(i);
+                if(date == -1 || dirs.get(i).lastModified() != date) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    private static class Digest {
+
+        final long size;
+        final long lastModified;
+        final String value;
+
+        Digest(long size, long lastModified, String value) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+
+    }
+
+    /**
+     * Periodically drops the unused scans of the index.
+     */
+    @Extension
+    public static class Cleaner extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return 10 * MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            get().clean();
+        }
+
+    }
+
+    private final static SourceTreeIndex INSTANCE = new SourceTreeIndex();
+
+    private final static int MAX_SCANS = 64;
+    private final static int MAX_DIGESTS = 100000;
+    private final static long MAX_IDLE_TIME = 60 * 60 * 1000; // 1 hour
+    /** Coarsest resolution of modification dates among common file systems (FAT). */
+    private final static long TIMESTAMP_RESOLUTION = 2000;
+
+}
@@ -0,0 +1,433 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.org.apache.tools.tar.TarInputStream;
+import hudson.util.IOException2;
+import hudson.util.IOUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.tools.tar.TarEntry;
+
+/**
+ * Extracts a tar stream (or a batched one, depending on the given
+ * {@link ArchiveFormat}) into a directory, with the flatten behavior of
+ * {@link MyFilePath#readFromTar}.
+ *
+ * <p>The calling thread reads (and decompresses) the stream; The content of
+ * small files is read into pooled buffers and written by a bounded pool of
+ * writer threads, so that reading the stream and writing to the disk go along.
+ * Big files are written directly by the calling thread, the space they need
+ * being allocated up front. Modification dates and permissions are applied
+ * once all the files have been written, except for the permissions new files
+ * get anyway.</p>
+ *
+ * <p>Hard link entries, used by {@link MyTarArchiver} for the files whose
+ * content has already been sent, are materialized once all the files have been
+ * written, as clones of the file they refer to when the file system supports
+ * it, as copies otherwise.</p>
+ */
+public class TarExtractor {
+
+    private final File baseDir;
+    private final boolean flatten;
+    private final SlaveFileCache cache;
+    private final ArchiveFormat format;
+
+    private final BufferPool buffers = new BufferPool(MAX_BUFFERS);
+    private final FileMetadata metadata = new FileMetadata();
+    /** Directories known to exist, so that {@code mkdirs()} is called once per directory. */
+    private final Set<File> dirs = new HashSet<File>();
+    /** Directories created by this extraction: The files they contain are new. */
+    private final Set<File> createdDirs = new HashSet<File>();
+    /**
+     * Pending writes, by file: When flattening, several entries may go to the
+     * same file, in which case the last one must win.
+     */
+    private final Map<File, Future<?>> pendingWrites = new HashMap<File, Future<?>>();
+    private final List<Future<?>> writes = new ArrayList<Future<?>>();
+    /** Files to be linked once all the writes are over, mapped to the file they refer to. */
+    private final Map<File, File> links = new LinkedHashMap<File, File>();
+    private ExecutorService writers;
+
+    public TarExtractor(File baseDir, boolean flatten, SlaveFileCache.Config cacheConfig) {
+        this(baseDir, flatten, cacheConfig, ArchiveFormat.TAR);
+    }
+
+    public TarExtractor(File baseDir, boolean flatten, SlaveFileCache.Config cacheConfig, ArchiveFormat format) {
+        this.baseDir = baseDir;
+        this.flatten = flatten;
+        this.cache = cacheConfig != null ? SlaveFileCache.get(cacheConfig) : null;
+        this.format = format != null ? format : ArchiveFormat.TAR;
+    }
+
+    /**
+     * Extracts an archive of the format given at construction time.
+     */
+    public void extract(InputStream in) throws IOException {
+        writers = Executors.newFixedThreadPool(WRITER_THREADS, new WriterThreadFactory());
+        try {
+            BatchInputStream batch = null;
+            TarInputStream tar = null;
+            if(format == ArchiveFormat.BATCH) {
+                batch = new BatchInputStream(in);
+            }
+            else {
+                tar = new TarInputStream(in);
+            }
+            InputStream t = batch != null ? batch : tar;
+
+            TarEntry tarEntry;
+            while((tarEntry = batch != null ? batch.getNextEntry() : tar.getNextEntry()) != null) {
+                File f = new File(baseDir, FileManifest.getTargetPath(tarEntry.getName(), flatten));
+
+                // dir processing
+                if(tarEntry.isDirectory()) {
+                    if(!flatten) {
+                        mkdirs(f);
+                    }
+                    continue;
+                }
+
+                // file processing
+                if(!flatten) {
+                    mkdirs(f.getParentFile());
+                }
+                waitForPendingWrite(f);
+
+                int mode = tarEntry.getMode();
+                String linkName = tarEntry.getLinkName();
+                if(linkName != null && linkName.length() > 0) {
+                    links.remove(f); // keep the order of the archive when flattening
+                    links.put(f, new File(baseDir, FileManifest.getTargetPath(linkName, flatten)));
+                }
+                else {
+                    if(cache == null && createdDirs.contains(f.getParentFile()) && (mode&0777) == getCreationMode(baseDir)) {
+                        mode = -1; // a new file already has these permissions: save a chmod
+                    }
+                    links.remove(f);
+                    if(tarEntry.getSize() <= MAX_BUFFERED_SIZE) {
+                        submit(f, readChunks(t, tarEntry.getSize()));
+                    }
+                    else {
+                        write(t, f, tarEntry.getSize());
+                    }
+                }
+
+                metadata.add(f, tarEntry.getModTime().getTime(), mode);
+            }
+
+            writers.shutdown();
+            for(Future<?> write : writes) {
+                write.get();
+            }
+            createLinks();
+            metadata.apply();
+        } catch(IOException e) {
+            throw new IOException2("Failed to extract to "+baseDir.getAbsolutePath(),e);
+        } catch(ExecutionException e) {
+            throw new IOException2("Failed to extract to "+baseDir.getAbsolutePath(),e.getCause());
+        } catch(InterruptedException e) {
+            throw new IOException2("Interrupted while extracting to "+baseDir.getAbsolutePath(),e);
+        } finally {
+            writers.shutdownNow();
+            in.close();
+        }
+    }
+
+    /**
+     * Creates the duplicates as files of their own, never as hard links: Their
+     * metadata are applied separately, and modifying one of them mustn't
+     * modify the others.
+     */
+    private void createLinks() throws IOException {
+        FileLinker.Strategy strategy = FileLinker.Strategy.REFLINK;
+        for(Map.Entry<File, File> link : links.entrySet()) {
+            strategy = FileLinker.link(link.getValue(), link.getKey(), strategy); // copies from now on if cloning failed
+        }
+    }
+
+    private void mkdirs(File dir) {
+        if(dir != null && dirs.add(dir) && dir.mkdirs()) {
+            createdDirs.add(dir);
+        }
+    }
+
+    /**
+     * Returns the permissions new files get (which depend on the umask of the
+     * process), or {@code -1} if they can't be determined.
+     */
+    private static synchronized int getCreationMode(File dir) {
+        if(creationMode == null) {
+            try {
+                File probe = File.createTempFile("copy-to-slave", ".tmp", dir);
+                try {
+                    int mode = IOUtils.mode(probe);
+                    creationMode = mode != -1 ? mode&0777 : -1;
+                } finally {
+                    probe.delete();
+                }
+            } catch (IOException e) {
+                return -1; // try again next time
+            }
+        }
+        return creationMode;
+    }
+
+    private void waitForPendingWrite(File f) throws InterruptedException, ExecutionException {
+        if(!flatten) {
+            return; // each file appears only once in the archive
+        }
+        Future<?> pending = pendingWrites.get(f);
+        if(pending != null) {
+            pending.get();
+        }
+    }
+
+    private List<ByteBuffer> readChunks(InputStream in, long size) throws IOException, InterruptedException {
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        long remaining = size;
+        while(remaining > 0) {
+            byte[] buf = buffers.acquire();
+            int len = 0;
+            while(len < buf.length && len < remaining) {
+                int read = in.read(buf, len, (int) Math.min(buf.length - len, remaining - len));
+                if(read < 0) {
+                    buffers.release(buf);
+                    throw new IOException("Unexpected end of the stream");
+                }
+                len += read;
+            }
+            chunks.add(ByteBuffer.wrap(buf, 0, len));
+            remaining -= len;
+        }
+        return chunks;
+    }
+
+    private void submit(final File f, final List<ByteBuffer> chunks) throws InterruptedException, ExecutionException {
+        Future<?> write = writers.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    if(cache != null) {
+                        cache.store(new ChunksInputStream(chunks), f);
+                    }
+                    else {
+                        FileOutputStream out = new FileOutputStream(f);
+                        try {
+                            FileChannel channel = out.getChannel();
+                            ByteBuffer[] srcs = chunks.toArray(new ByteBuffer[chunks.size()]);
+                            long remaining = 0;
+                            for(ByteBuffer src : srcs) {
+                                remaining += src.remaining();
+                            }
+                            while(remaining > 0) {
+                                remaining -= channel.write(srcs);
+                            }
+                        } finally {
+                            out.close();
+                        }
+                    }
+                    return null;
+                } finally {
+                    for(ByteBuffer chunk : chunks) {
+                        buffers.release(chunk.array());
+                    }
+                }
+            }
+        });
+        writes.add(write);
+        if(writes.size() >= MAX_TRACKED_WRITES) {
+            forgetCompletedWrites();
+        }
+        if(flatten) {
+            pendingWrites.put(f, write);
+        }
+    }
+
+    /**
+     * Stops tracking the writes which are over, reporting failures if any.
+     */
+    private void forgetCompletedWrites() throws InterruptedException, ExecutionException {
+        Iterator<Future<?>> it = writes.iterator();
+        while(it.hasNext()) {
+            Future<?> write = it.next();
+            if(write.isDone()) {
+                write.get();
+                it.remove();
+            }
+        }
+        if(flatten) {
+            Iterator<Future<?>> pending = pendingWrites.values().iterator();
+            while(pending.hasNext()) {
+                if(pending.next().isDone()) {
+                    pending.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a big file from the calling thread.
+     */
+    private void write(InputStream in, File f, long size) throws IOException {
+        if(cache != null) {
+            cache.store(in, f);
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(size); // allocates the space at once, and truncates the former content if any
+            FileChannel channel = raf.getChannel();
+            byte[] buf = new byte[CHUNK_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            int len;
+            while((len = in.read(buf)) >= 0) {
+                bb.clear().limit(len);
+                while(bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Fixed set of buffers: Reading the stream blocks when all of them are
+     * waiting to be written.
+     */
+    private static class BufferPool {
+
+        private final ArrayBlockingQueue<byte[]> free;
+        private final int max;
+        private int created;
+
+        BufferPool(int max) {
+            this.max = max;
+            this.free = new ArrayBlockingQueue<byte[]>(max);
+        }
+
+        byte[] acquire() throws InterruptedException {
+            byte[] buf = free.poll();
+            if(buf != null) {
+                return buf;
+            }
+            synchronized(this) {
+                if(created < max) {
+                    created++;
+                    return new byte[CHUNK_SIZE];
+                }
+            }
+            return free.take();
+        }
+
+        void release(byte[] buf) {
+            free.offer(buf);
+        }
+
+    }
+
+    /**
+     * Reads a list of buffers as a stream.
+     */
+    private static class ChunksInputStream extends InputStream {
+
+        private final List<ByteBuffer> chunks;
+        private int index;
+
+        ChunksInputStream(List<ByteBuffer> chunks) {
+            // don't alter the buffers themselves: they go back to the pool
+            this.chunks = new ArrayList<ByteBuffer>(chunks.size());
+            for(ByteBuffer chunk : chunks) {
+                this.chunks.add(chunk.duplicate());
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while(index < chunks.size() && !chunks.get(index).hasRemaining()) {
+                index++;
+            }
+            if(index == chunks.size()) {
+                return -1;
+            }
+            ByteBuffer chunk = chunks.get(index);
+            len = Math.min(len, chunk.remaining());
+            chunk.get(b, off, len);
+            return len;
+        }
+
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "copy-to-slave writer #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+    private static Integer creationMode;
+
+    private final static int CHUNK_SIZE = 64 * 1024;
+    /** Up to 16 MB of file content waiting to be written. */
+    private final static int MAX_BUFFERS = 256;
+    /** Files bigger than this are written by the reading thread. */
+    private final static long MAX_BUFFERED_SIZE = 1024 * 1024;
+    private final static int MAX_TRACKED_WRITES = 1024;
+    private final static int WRITER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+}
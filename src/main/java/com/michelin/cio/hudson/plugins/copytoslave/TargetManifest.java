@@ -0,0 +1,299 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOException2;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Record, kept on the target node next to the target directory, of the files
+ * a copy wrote into this directory, so that exactly these files can be
+ * deleted afterwards, cf. {@link CleanUp}.
+ *
+ * <p>Files which have been modified since they were copied (other size or
+ * modification date) are not deleted: They're not copies anymore.</p>
+ *
+ * <p>The record also tells the next copy which files the target directory
+ * holds: The other ones are known to be missing and are sent without being
+ * looked for, cf. {@link TransferOptions#isUseTargetManifest()}.</p>
+ */
+public class TargetManifest {
+
+    /**
+     * When the copied files are deleted.
+     */
+    public enum CleanUp {
+        /** Never: No manifest is recorded. */
+        NEVER,
+        /** Once the next copy is done, for the files it didn't copy again. */
+        BEFORE_NEXT_COPY,
+        /** At the end of the build. */
+        AFTER_BUILD;
+
+        /**
+         * Parses the name of a mode, returns {@code defaultValue} if it's
+         * blank or unknown.
+         */
+        public static CleanUp fromName(String name, CleanUp defaultValue) {
+            if(StringUtils.isBlank(name)) {
+                return defaultValue;
+            }
+            try {
+                return valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * Records the files of {@code manifest} as the ones copied into
+     * {@code target}, deleting the previously recorded ones which are not
+     * part of it.
+     *
+     * @return the number of deleted files
+     */
+    public static int record(FilePath target, FileManifest manifest) throws IOException, InterruptedException {
+        HashMap<String, String> entries = new HashMap<String, String>();
+        for(Map.Entry<String, FileManifest.Entry> e : manifest.getEntriesByTargetPath().entrySet()) {
+            entries.put(e.getKey(), toLine(e.getValue().getSize(), e.getValue().getLastModified()));
+        }
+        return target.act(new Record(entries));
+    }
+
+    /**
+     * Deletes the files recorded for {@code target}.
+     *
+     * @return the number of deleted files
+     */
+    public static int cleanUp(FilePath target) throws IOException, InterruptedException {
+        return target.act(new Delete());
+    }
+
+    /**
+     * Returns the file the manifest of the given target directory is kept in.
+     */
+    static File getManifestFile(File baseDir) {
+        File parent = baseDir.getAbsoluteFile().getParentFile();
+        if(parent == null) {
+            return new File(baseDir, MANIFEST_SUFFIX);
+        }
+        return new File(parent, baseDir.getName() + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Loads the manifest of the given target directory: Target path of the
+     * copied files -> {@link #toLine} of their size and modification date,
+     * or {@code null} if there's no manifest.
+     */
+    static Map<String, String> load(File baseDir) throws IOException {
+        File manifest = getManifestFile(baseDir);
+        if(!manifest.isFile()) {
+            return null;
+        }
+        Map<String, String> entries = new HashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                int i = line.indexOf('\t');
+                if(i > 0) {
+                    entries.put(line.substring(0, i), line.substring(i + 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    private static void save(File baseDir, Map<String, String> entries) throws IOException {
+        File manifest = getManifestFile(baseDir);
+        File tmp = new File(manifest.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for(Map.Entry<String, String> e : entries.entrySet()) {
+                w.write(e.getKey() + '\t' + e.getValue() + '\n');
+            }
+        } finally {
+            w.close();
+        }
+        manifest.delete();
+        if(!tmp.renameTo(manifest)) {
+            throw new IOException("Failed to write " + manifest);
+        }
+    }
+
+    private static String toLine(long size, long lastModified) {
+        return size + "\t" + lastModified / 1000; // tar archives only keep seconds
+    }
+
+    /**
+     * Deletes, in parallel, the given files which haven't been modified since
+     * they were copied, then the directories left empty.
+     *
+     * @return the files which have been kept
+     */
+    private static Map<String, String> delete(final File baseDir, Map<String, String> entries) throws IOException {
+        final Map<String, String> kept = new ConcurrentHashMap<String, String>();
+        final Map<File, Boolean> deleted = new ConcurrentHashMap<File, Boolean>();
+        ExecutorService deleters = Executors.newFixedThreadPool(DELETER_THREADS, new DeleterThreadFactory());
+        try {
+            List<Future<?>> deletions = new ArrayList<Future<?>>(entries.size());
+            for(final Map.Entry<String, String> e : entries.entrySet()) {
+                deletions.add(deleters.submit(new Callable<Void>() {
+                    public Void call() {
+                        File f = new File(baseDir, e.getKey());
+                        if(!f.isFile()) {
+                            return null; // already gone
+                        }
+                        if(!toLine(f.length(), f.lastModified()).equals(e.getValue()) || !f.delete()) {
+                            kept.put(e.getKey(), e.getValue());
+                            return null;
+                        }
+                        deleted.put(f, Boolean.TRUE);
+                        return null;
+                    }
+                }));
+            }
+            for(Future<?> deletion : deletions) {
+                deletion.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException2("Failed to delete the copied files from " + baseDir, e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException2("Interrupted while deleting the copied files from " + baseDir, e);
+        } finally {
+            deleters.shutdownNow();
+        }
+
+        // deepest directories first: deleting a directory which isn't empty simply fails
+        TreeSet<File> dirs = new TreeSet<File>(new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                int diff = f2.getPath().length() - f1.getPath().length();
+                return diff != 0 ? diff : f1.compareTo(f2);
+            }
+        });
+        int rootLength = baseDir.getAbsolutePath().length();
+        for(File f : deleted.keySet()) {
+            File dir = f.getAbsoluteFile().getParentFile();
+            while(dir != null && dir.getPath().length() > rootLength && dirs.add(dir)) {
+                dir = dir.getParentFile();
+            }
+        }
+        for(File dir : dirs) {
+            dir.delete();
+        }
+
+        return new HashMap<String, String>(kept);
+    }
+
+    /**
+     * Replaces the manifest of the target directory, deleting the previously
+     * recorded files which are not part of the new one.
+     */
+    private static class Record implements FileCallable<Integer> {
+
+        private static final long serialVersionUID = 1;
+
+        private final HashMap<String, String> entries;
+
+        Record(HashMap<String, String> entries) {
+            this.entries = entries;
+        }
+
+        public Integer invoke(File baseDir, VirtualChannel channel) throws IOException {
+            Map<String, String> previous = load(baseDir);
+            int stale = 0;
+            if(previous != null) {
+                previous.keySet().removeAll(entries.keySet());
+                stale = previous.size() - delete(baseDir, previous).size(); // modified files are not ours anymore
+            }
+            save(baseDir, entries);
+            return stale;
+        }
+
+    }
+
+    /**
+     * Deletes the files recorded for the target directory, only the modified
+     * ones being kept in the manifest.
+     */
+    private static class Delete implements FileCallable<Integer> {
+
+        private static final long serialVersionUID = 1;
+
+        public Integer invoke(File baseDir, VirtualChannel channel) throws IOException {
+            Map<String, String> entries = load(baseDir);
+            if(entries == null) {
+                return 0;
+            }
+            Map<String, String> kept = delete(baseDir, entries);
+            save(baseDir, kept);
+            return entries.size() - kept.size();
+        }
+
+    }
+
+    private static class DeleterThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "copy-to-slave deleter #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+    private final static String MANIFEST_SUFFIX = "@copy-to-slave-manifest";
+    private final static int DELETER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+}
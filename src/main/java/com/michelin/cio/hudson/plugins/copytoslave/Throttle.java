@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the bandwidth used by copies, so that big ones don't starve the
+ * rest of the remoting traffic (console logs, pings, etc.).
+ *
+ * <p>A throttle is made of one or more {@link TokenBucket}s, typically the
+ * bucket shared by all the copies of the instance and the one shared by all
+ * the copies to or from a given node: Each byte sent has to be allowed by all
+ * of them.</p>
+ *
+ * <p>Throttling always happens on the master: When it sends files, writing to
+ * the pipe is slowed down; When it receives files, reading from the pipe is,
+ * which in turn slows the slave down.</p>
+ */
+public class Throttle {
+
+    private final TokenBucket[] buckets;
+
+    public Throttle(List<TokenBucket> buckets) {
+        this.buckets = buckets.toArray(new TokenBucket[buckets.size()]);
+    }
+
+    public void acquire(int bytes) throws InterruptedIOException {
+        try {
+            for(TokenBucket bucket : buckets) {
+                bucket.acquire(bytes);
+            }
+        } catch (InterruptedException e) {
+            InterruptedIOException iioe = new InterruptedIOException("Interrupted while throttling the copy");
+            iioe.initCause(e);
+            throw iioe;
+        }
+    }
+
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while(len > 0) {
+                    int chunk = Math.min(len, CHUNK_SIZE);
+                    acquire(chunk);
+                    out.write(b, off, chunk);
+                    off += chunk;
+                    len -= chunk;
+                }
+            }
+        };
+    }
+
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if(b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, Math.min(len, CHUNK_SIZE));
+                if(read > 0) {
+                    acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Returns the bucket shared by all the copies, created or updated with
+     * the given rate.
+     */
+    public static TokenBucket getGlobalBucket(long bytesPerSecond) {
+        return getBucket(GLOBAL_KEY, bytesPerSecond);
+    }
+
+    /**
+     * Returns the bucket shared by all the copies to or from the given node,
+     * created or updated with the given rate.
+     */
+    public static TokenBucket getNodeBucket(String nodeName, long bytesPerSecond) {
+        return getBucket("node:" + nodeName, bytesPerSecond);
+    }
+
+    /**
+     * Returns the bucket used to fill the file cache of the given node, which
+     * is not shared with the copies of the builds.
+     */
+    public static TokenBucket getPrefetchBucket(String nodeName, long bytesPerSecond) {
+        return getBucket("prefetch:" + nodeName, bytesPerSecond);
+    }
+
+    private static TokenBucket getBucket(String key, long bytesPerSecond) {
+        synchronized(BUCKETS) {
+            TokenBucket bucket = BUCKETS.get(key);
+            if(bucket == null) {
+                bucket = new TokenBucket(bytesPerSecond);
+                BUCKETS.put(key, bucket);
+            }
+            else {
+                bucket.setRate(bytesPerSecond);
+            }
+            return bucket;
+        }
+    }
+
+    /**
+     * Classic token bucket: Tokens (bytes) are added at a constant rate, up to
+     * one second worth of them, which allows short bursts.
+     *
+     * <p>A caller can consume more tokens than available, in which case it
+     * sleeps till the debt is paid back.</p>
+     */
+    public static class TokenBucket {
+
+        private long rate;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            this.rate = Math.max(1, bytesPerSecond);
+            this.tokens = rate;
+        }
+
+        synchronized void setRate(long bytesPerSecond) {
+            refill();
+            rate = Math.max(1, bytesPerSecond);
+            tokens = Math.min(tokens, rate);
+        }
+
+        public void acquire(long bytes) throws InterruptedException {
+            long sleep;
+            synchronized(this) {
+                refill();
+                tokens -= bytes;
+                sleep = tokens < 0 ? (long) (-tokens * 1000 / rate) : 0;
+            }
+            if(sleep > 0) {
+                Thread.sleep(sleep);
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+            last = now;
+        }
+
+    }
+
+    private final static Map<String, TokenBucket> BUCKETS = new HashMap<String, TokenBucket>();
+
+    private final static String GLOBAL_KEY = "global";
+
+    /** Bytes acquired at once: small enough to keep the flow smooth. */
+    private final static int CHUNK_SIZE = 16 * 1024;
+
+}
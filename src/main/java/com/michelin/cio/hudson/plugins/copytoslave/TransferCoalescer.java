@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Registry of the copies in progress to each slave, so that a copy which is
+ * identical to one in progress (same source, patterns and layout, to the same
+ * slave) waits for it to complete, then copies the files from its target
+ * directory, on the slave itself, rather than getting them from the master
+ * once more.
+ *
+ * <p>The files copied this way are checked against the manifest of the source
+ * directory (size and modification date): The ones which have been modified
+ * meanwhile (e.g. by the build which got them first) are sent from the master
+ * as usual.</p>
+ */
+public class TransferCoalescer {
+
+    private final Map<String, Transfer> inProgress = new HashMap<String, Transfer>();
+
+    public static TransferCoalescer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a copy to {@code target}, which is on the slave named
+     * {@code node}.
+     *
+     * @param key identifies the content of the copy: source directory,
+     *        expanded patterns and layout options
+     * @return a ticket telling whether the caller is in charge of the copy or
+     *         has to wait for an identical one
+     */
+    public synchronized Ticket join(String node, String key, FilePath target) {
+        String fullKey = node + '\n' + key;
+        Transfer transfer = inProgress.get(fullKey);
+        if(transfer != null) {
+            return new Ticket(transfer, false);
+        }
+        transfer = new Transfer(fullKey, target);
+        inProgress.put(fullKey, transfer);
+        return new Ticket(transfer, true);
+    }
+
+    private synchronized void done(Transfer transfer) {
+        inProgress.remove(transfer.key);
+    }
+
+    /**
+     * Copies the files of {@code source} which {@code leaderTarget}, on the
+     * same node as {@code target}, has received from an identical copy; The
+     * other ones are sent from {@code source}.
+     */
+    public static int copyFrom(
+            FilePath leaderTarget,
+            FilePath source, String includes, String excludes, boolean flatten, boolean includeAntExcludes,
+            FilePath target, TransferOptions options) throws IOException, InterruptedException {
+        TransferStatistics statistics = options.getStatistics();
+        long start = System.currentTimeMillis();
+        FileManifest manifest = MyFilePath.buildManifest(source, includes, excludes, includeAntExcludes, flatten, false, 0);
+        statistics.addScanTime(System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        List<String> leftovers = target.act(new CopyFromLeader(leaderTarget.getRemote(), manifest));
+        statistics.addFilesSent(manifest.size() - leftovers.size());
+        statistics.addTransferTime(System.currentTimeMillis() - start);
+        if(leftovers.isEmpty()) {
+            return manifest.size();
+        }
+
+        start = System.currentTimeMillis();
+        try {
+            return manifest.size() - leftovers.size() + MyFilePath.transfer(source, manifest, leftovers, flatten, target, options);
+        } finally {
+            statistics.addTransferTime(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * A copy in progress.
+     */
+    private static class Transfer {
+
+        final String key;
+        final FilePath target;
+        final CountDownLatch completion = new CountDownLatch(1);
+        volatile boolean succeeded;
+
+        Transfer(String key, FilePath target) {
+            this.key = key;
+            this.target = target;
+        }
+
+    }
+
+    /**
+     * The part taken by a caller of {@link #join} in a copy.
+     */
+    public class Ticket {
+
+        private final Transfer transfer;
+        private final boolean leader;
+
+        Ticket(Transfer transfer, boolean leader) {
+            this.transfer = transfer;
+            this.leader = leader;
+        }
+
+        /**
+         * Tells if the caller is in charge of the copy, in which case it must
+         * call {@link #done} once it's over.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * The directory the files are copied to by the leader.
+         */
+        public FilePath getTarget() {
+            return transfer.target;
+        }
+
+        /**
+         * Waits for the leader to complete the copy, returns {@code true} if
+         * it succeeded.
+         */
+        public boolean await(PrintStream logger) throws InterruptedException {
+            if(transfer.completion.getCount() > 0) {
+                logger.printf("[copy-to-slave] Waiting for the identical copy to '%s' to complete.\n", transfer.target.getRemote());
+            }
+            transfer.completion.await();
+            return transfer.succeeded;
+        }
+
+        public void done(boolean succeeded) {
+            transfer.succeeded = succeeded;
+            TransferCoalescer.this.done(transfer);
+            transfer.completion.countDown();
+        }
+
+    }
+
+    /**
+     * Run on the target node to copy the files of a manifest from the target
+     * directory of another copy, provided they haven't changed; Returns the
+     * source paths of the files which have not been copied.
+     *
+     * <p>Files are cloned when possible, copied otherwise, whatever the link
+     * strategy of the copy: Both workspaces are used by concurrent builds,
+     * which mustn't see each other's modifications.</p>
+     */
+    private static class CopyFromLeader implements FileCallable<List<String>> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String leaderPath;
+        private final FileManifest manifest;
+
+        CopyFromLeader(String leaderPath, FileManifest manifest) {
+            this.leaderPath = leaderPath;
+            this.manifest = manifest;
+        }
+
+        public List<String> invoke(File baseDir, VirtualChannel channel) throws IOException {
+            List<String> leftovers = new ArrayList<String>();
+            FileMetadata metadata = new FileMetadata();
+            File leaderDir = new File(leaderPath);
+            FileLinker.Strategy strategy = FileLinker.Strategy.REFLINK;
+            for(Map.Entry<String, FileManifest.Entry> e : manifest.getEntriesByTargetPath().entrySet()) {
+                FileManifest.Entry entry = e.getValue();
+                File source = new File(leaderDir, e.getKey());
+                File target = new File(baseDir, e.getKey());
+                // the leader's files come from an archive, which only keeps whole seconds
+                if(source.length() != entry.getSize() || source.lastModified() / 1000 != entry.getLastModified() / 1000) {
+                    leftovers.add(entry.getPath());
+                    continue;
+                }
+                try {
+                    target.getParentFile().mkdirs();
+                    strategy = FileLinker.link(source, target, strategy); // copies from now on if cloning failed
+                    metadata.add(target, entry.getLastModified(), entry.getMode());
+                } catch (IOException ex) {
+                    leftovers.add(entry.getPath()); // e.g. moved away meanwhile
+                }
+            }
+            metadata.apply();
+            return leftovers;
+        }
+
+    }
+
+    private final static TransferCoalescer INSTANCE = new TransferCoalescer();
+
+}
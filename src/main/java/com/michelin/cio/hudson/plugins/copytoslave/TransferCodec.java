@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * How the archive sent from a node to another one is compressed.
+ *
+ * <p>All the codecs but {@link #NONE} produce a GZIP stream, so that the
+ * receiving side doesn't need anything more than the JDK; They only differ by
+ * the compression level they use.</p>
+ */
+public enum TransferCodec {
+
+    /**
+     * No compression at all: Best when the network is faster than the CPU.
+     */
+    NONE,
+    /**
+     * GZIP with the fastest compression level.
+     */
+    FAST,
+    /**
+     * GZIP with the configured compression level.
+     */
+    GZIP,
+    /**
+     * Same as {@link #GZIP} but files which are already compressed (archives,
+     * images, etc.) are stored as is.
+     */
+    AUTO;
+
+    public final static int DEFAULT_LEVEL = 6;
+
+    public OutputStream compress(OutputStream out, int level) throws IOException {
+        switch(this) {
+            case NONE:
+                return out;
+            case FAST:
+                return new LevelGZIPOutputStream(out, Deflater.BEST_SPEED, false);
+            case AUTO:
+                return new LevelGZIPOutputStream(out, level, true);
+            default:
+                return new LevelGZIPOutputStream(out, level, false);
+        }
+    }
+
+    public InputStream extract(InputStream in) throws IOException {
+        if(this == NONE) {
+            return in;
+        }
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Parses the name of a codec, returns {@code defaultValue} if it's blank
+     * or unknown.
+     */
+    public static TransferCodec fromName(String name, TransferCodec defaultValue) {
+        if(StringUtils.isBlank(name)) {
+            return defaultValue;
+        }
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Tells, from its name, if a file is most likely already compressed.
+     */
+    public static boolean isCompressed(String fileName) {
+        String extension = StringUtils.substringAfterLast(fileName, ".");
+        return COMPRESSED_EXTENSIONS.contains(extension.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * {@link GZIPOutputStream} whose compression level can be set and, in
+     * adaptive mode, changed between two entries of the archive.
+     */
+    public static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        private final int level;
+        private final boolean adaptive;
+        private long rawBytes = -1;
+
+        LevelGZIPOutputStream(OutputStream out, int level, boolean adaptive) throws IOException {
+            super(out, BUFFER_SIZE);
+            this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+            this.adaptive = adaptive;
+            def.setLevel(this.level);
+        }
+
+        /**
+         * Called by the archiver before it writes the file named
+         * {@code fileName}: In adaptive mode, files which are already
+         * compressed are stored as is.
+         *
+         * <p>Because of the buffering done by the archiver, the new level
+         * applies to the end of the previous entry too, which is harmless.</p>
+         */
+        public void startEntry(String fileName) {
+            if(adaptive) {
+                def.setLevel(isCompressed(fileName) ? Deflater.NO_COMPRESSION : level);
+            }
+        }
+
+        /**
+         * Number of bytes written to this stream, before compression.
+         */
+        public long getRawBytes() {
+            return rawBytes >= 0 ? rawBytes : def.getBytesRead();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(rawBytes < 0) {
+                finish();
+                rawBytes = def.getBytesRead(); // the deflater can't be queried anymore once closed
+            }
+            super.close();
+        }
+
+    }
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "7z", "apk", "bz2", "docx", "ear", "gif", "gz", "hpi", "jar", "jpeg", "jpg", "jpi", "lz4",
+            "lzma", "mp3", "mp4", "nupkg", "png", "pptx", "rar", "rpm", "tbz2", "tgz", "txz", "war",
+            "whl", "xlsx", "xz", "zip", "zst"));
+
+}
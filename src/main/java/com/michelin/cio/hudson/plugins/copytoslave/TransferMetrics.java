@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.listeners.ItemListener;
+import hudson.slaves.ComputerListener;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms aggregating the {@link TransferStatistics} of all
+ * the copies since the master started, exposed over JMX as
+ * {@value #OBJECT_NAME}.
+ *
+ * <p>The times per node and per job forget the deleted nodes and jobs, and
+ * only keep the {@value #MAX_KEYS} most recently used ones (slaves of clouds
+ * come and go).</p>
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    private long transfers;
+    private long filesSent;
+    private long filesSkipped;
+    private long rawBytes;
+    private long wireBytes;
+    private long totalTime;
+    private long[] durationHistogram = new long[DURATION_BOUNDS.length + 1];
+    private Map<String, Long> totalTimeByNode = createTimeMap();
+    private Map<String, Long> totalTimeByJob = createTimeMap();
+
+    public static synchronized TransferMetrics get() {
+        if(instance == null) {
+            instance = new TransferMetrics();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                LOGGER.log(Level.WARNING, "Failed to register the copy metrics over JMX", e);
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void record(String job, String node, TransferStatistics statistics) {
+        transfers++;
+        filesSent += statistics.getFilesSent();
+        filesSkipped += statistics.getFilesSkipped();
+        rawBytes += statistics.getRawBytes();
+        wireBytes += statistics.getWireBytes();
+        totalTime += statistics.getTotalTime();
+
+        int bucket = 0;
+        while(bucket < DURATION_BOUNDS.length && statistics.getTotalTime() > DURATION_BOUNDS[bucket]) {
+            bucket++;
+        }
+        durationHistogram[bucket]++;
+
+        add(totalTimeByNode, node, statistics.getTotalTime());
+        add(totalTimeByJob, job, statistics.getTotalTime());
+    }
+
+    private static Map<String, Long> createTimeMap() {
+        return new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_KEYS;
+            }
+        };
+    }
+
+    private static void add(Map<String, Long> times, String key, long time) {
+        Long previous = times.get(key);
+        times.put(key, previous != null ? previous + time : time);
+    }
+
+    public synchronized long getTransfers() {
+        return transfers;
+    }
+
+    public synchronized long getFilesSent() {
+        return filesSent;
+    }
+
+    public synchronized long getFilesSkipped() {
+        return filesSkipped;
+    }
+
+    public synchronized long getRawBytes() {
+        return rawBytes;
+    }
+
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    public synchronized long getTotalTime() {
+        return totalTime;
+    }
+
+    public long[] getDurationHistogramBounds() {
+        return DURATION_BOUNDS.clone();
+    }
+
+    public synchronized long[] getDurationHistogram() {
+        return durationHistogram.clone();
+    }
+
+    public synchronized Map<String, Long> getTotalTimeByNode() {
+        return new TreeMap<String, Long>(totalTimeByNode);
+    }
+
+    public synchronized Map<String, Long> getTotalTimeByJob() {
+        return new TreeMap<String, Long>(totalTimeByJob);
+    }
+
+    public synchronized void reset() {
+        transfers = filesSent = filesSkipped = rawBytes = wireBytes = totalTime = 0;
+        durationHistogram = new long[DURATION_BOUNDS.length + 1];
+        totalTimeByNode = createTimeMap();
+        totalTimeByJob = createTimeMap();
+    }
+
+    private synchronized void forgetJob(String job) {
+        totalTimeByJob.remove(job);
+    }
+
+    /**
+     * Forgets the nodes which are not part of {@code nodes} anymore.
+     */
+    private synchronized void retainNodes(Set<String> nodes) {
+        totalTimeByNode.keySet().retainAll(nodes);
+    }
+
+    /**
+     * Forgets the times of the deleted jobs.
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+
+        @Override
+        public void onDeleted(Item item) {
+            TransferMetrics.get().forgetJob(item.getFullName());
+        }
+
+    }
+
+    /**
+     * Forgets the times of the removed nodes.
+     */
+    @Extension
+    public static class NodeListener extends ComputerListener {
+
+        @Override
+        public void onConfigurationChange() {
+            Set<String> nodes = new HashSet<String>();
+            nodes.add(""); // the master
+            for(Node node : Hudson.getInstance().getNodes()) {
+                nodes.add(node.getNodeName());
+            }
+            TransferMetrics.get().retainNodes(nodes);
+        }
+
+    }
+
+    private static TransferMetrics instance;
+
+    public final static String OBJECT_NAME = "com.michelin.cio.hudson.plugins.copytoslave:type=TransferMetrics";
+
+    /** 1 s, 5 s, 30 s, 2 min, 10 min. */
+    private final static long[] DURATION_BOUNDS = { 1000, 5000, 30000, 120000, 600000 };
+    private final static int MAX_KEYS = 1000;
+
+    private final static Logger LOGGER = Logger.getLogger(TransferMetrics.class.getName());
+
+}
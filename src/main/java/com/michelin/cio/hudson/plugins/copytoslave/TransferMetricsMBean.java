@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link TransferMetrics}.
+ */
+public interface TransferMetricsMBean {
+
+    long getTransfers();
+
+    long getFilesSent();
+
+    long getFilesSkipped();
+
+    long getRawBytes();
+
+    long getWireBytes();
+
+    /**
+     * Total time spent copying, in ms.
+     */
+    long getTotalTime();
+
+    /**
+     * Upper bounds, in ms, of the buckets of {@link #getDurationHistogram()}.
+     */
+    long[] getDurationHistogramBounds();
+
+    /**
+     * Number of copies per duration bucket, the last bucket holding the copies
+     * longer than the last bound.
+     */
+    long[] getDurationHistogram();
+
+    /**
+     * Total time spent copying, in ms, per node.
+     */
+    Map<String, Long> getTotalTimeByNode();
+
+    /**
+     * Total time spent copying, in ms, per job.
+     */
+    Map<String, Long> getTotalTimeByJob();
+
+    void reset();
+
+}
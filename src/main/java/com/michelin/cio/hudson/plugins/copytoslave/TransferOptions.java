@@ -0,0 +1,283 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.Serializable;
+
+/**
+ * Tuning knobs of {@link MyFilePath#copyRecursiveTo}.
+ *
+ * <p>Instances are sent over the remoting channel along with the callables
+ * which run on the target node, so they must stay {@link Serializable}.</p>
+ */
+public class TransferOptions implements Serializable {
+
+    private static final long serialVersionUID = 1;
+
+    private boolean deltaSync;
+    private boolean compareChecksums;
+    private SlaveFileCache.Config cache;
+    private TransferCodec codec = TransferCodec.GZIP;
+    private int compressionLevel = TransferCodec.DEFAULT_LEVEL;
+    private ArchiveFormat archiveFormat = ArchiveFormat.TAR;
+    private int streams = 1;
+    private long bundleCacheMaxSize;
+    private boolean resumable;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int retries = DEFAULT_RETRIES;
+    private long blockDeltaThreshold;
+    private long minAge;
+    private boolean detectSharedFileSystem;
+    private FileLinker.Strategy linkStrategy = FileLinker.Strategy.COPY;
+    private boolean useTargetManifest;
+    private transient Throttle throttle;
+    private transient TransferStatistics statistics = new TransferStatistics();
+
+    /**
+     * If {@code true}, the target node is asked which files it already holds
+     * and only new or modified files are sent.
+     */
+    public boolean isDeltaSync() {
+        return deltaSync;
+    }
+
+    public void setDeltaSync(boolean deltaSync) {
+        this.deltaSync = deltaSync;
+    }
+
+    /**
+     * If {@code true}, files which have the same size but not the same
+     * modification time are compared using their MD5 checksum rather than
+     * being sent again.
+     */
+    public boolean isCompareChecksums() {
+        return compareChecksums;
+    }
+
+    public void setCompareChecksums(boolean compareChecksums) {
+        this.compareChecksums = compareChecksums;
+    }
+
+    /**
+     * The file cache of the target node to go through, or {@code null} if
+     * files are to be copied directly into the target directory.
+     */
+    public SlaveFileCache.Config getCache() {
+        return cache;
+    }
+
+    public void setCache(SlaveFileCache.Config cache) {
+        this.cache = cache;
+    }
+
+    public TransferCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(TransferCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Compression level, from 1 (fastest) to 9 (best compression), used by
+     * {@link TransferCodec#GZIP} and {@link TransferCodec#AUTO}.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Format of the archive written by the source node and read by the
+     * target node.
+     */
+    public ArchiveFormat getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    public void setArchiveFormat(ArchiveFormat archiveFormat) {
+        this.archiveFormat = archiveFormat;
+    }
+
+    /**
+     * Number of streams (each one having its own pipe) the files are spread
+     * over, so that several threads archive and extract them.
+     */
+    public int getStreams() {
+        return streams;
+    }
+
+    public void setStreams(int streams) {
+        this.streams = streams;
+    }
+
+    /**
+     * Maximum size, in bytes, of the {@link BundleCache} of the master; A
+     * value of {@code 0} disables the cache.
+     */
+    public long getBundleCacheMaxSize() {
+        return bundleCacheMaxSize;
+    }
+
+    public void setBundleCacheMaxSize(long bundleCacheMaxSize) {
+        this.bundleCacheMaxSize = bundleCacheMaxSize;
+    }
+
+    /**
+     * If {@code true}, the copy is done by {@link ResumableTransfer}.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Size, in bytes, of the segments of a {@link #isResumable() resumable}
+     * copy.
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Number of times a segment of a {@link #isResumable() resumable} copy is
+     * sent again when it fails.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Size, in bytes, from which the files which already exist on the target
+     * node are sent as {@link BlockDelta deltas}; A value of {@code 0}
+     * disables deltas.
+     */
+    public long getBlockDeltaThreshold() {
+        return blockDeltaThreshold;
+    }
+
+    public void setBlockDeltaThreshold(long blockDeltaThreshold) {
+        this.blockDeltaThreshold = blockDeltaThreshold;
+    }
+
+    /**
+     * Minimum age, in milliseconds, of the files to be copied: Files which
+     * have been modified more recently are left out, as they may still be
+     * being written; A value of {@code 0} copies all the files.
+     */
+    public long getMinAge() {
+        return minAge;
+    }
+
+    public void setMinAge(long minAge) {
+        this.minAge = minAge;
+    }
+
+    /**
+     * If {@code true}, copies from the master first check if the target node
+     * sees the source directory at the same path, in which case the target
+     * node copies the files itself, cf. {@link SharedFileSystem}.
+     */
+    public boolean isDetectSharedFileSystem() {
+        return detectSharedFileSystem;
+    }
+
+    public void setDetectSharedFileSystem(boolean detectSharedFileSystem) {
+        this.detectSharedFileSystem = detectSharedFileSystem;
+    }
+
+    /**
+     * How the target node creates files from the ones it sees in a shared
+     * directory.
+     */
+    public FileLinker.Strategy getLinkStrategy() {
+        return linkStrategy;
+    }
+
+    public void setLinkStrategy(FileLinker.Strategy linkStrategy) {
+        this.linkStrategy = linkStrategy;
+    }
+
+    /**
+     * If {@code true}, the target node trusts the {@link TargetManifest} of
+     * the target directory, if any: The files it doesn't list are known to be
+     * missing and are not looked for.
+     */
+    public boolean isUseTargetManifest() {
+        return useTargetManifest;
+    }
+
+    public void setUseTargetManifest(boolean useTargetManifest) {
+        this.useTargetManifest = useTargetManifest;
+    }
+
+    /**
+     * The bandwidth limit applied by the master to the copy, or {@code null}
+     * for none. Not sent to the other node.
+     */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Where the master records what happened during the copy. Not sent to
+     * the other node.
+     */
+    public TransferStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(TransferStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Tells if the MD5 checksums of the source files are required.
+     */
+    public boolean isDigestRequired() {
+        return compareChecksums || cache != null || resumable;
+    }
+
+    public final static long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public final static int DEFAULT_RETRIES = 3;
+
+}
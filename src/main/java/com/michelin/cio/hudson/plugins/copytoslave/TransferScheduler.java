@@ -0,0 +1,225 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Master-wide scheduler of the copies, so that hundreds of builds starting at
+ * the same time don't all hit the disk, CPU and network of the master at once.
+ *
+ * <p>A copy has to {@link #acquire} a slot before it starts and to
+ * {@link Slot#release} it once done. The number of slots is limited globally
+ * and per node; When no slot is available, copies are queued and served
+ * according to the configured {@link Policy}.</p>
+ */
+public class TransferScheduler {
+
+    private final LinkedList<Request> queue = new LinkedList<Request>();
+    private final Map<String, Integer> runningByNode = new HashMap<String, Integer>();
+    private final Map<String, Integer> runningByJob = new HashMap<String, Integer>();
+    private int running;
+
+    private int maxTransfers;
+    private int maxTransfersPerNode;
+    private Policy policy = Policy.FIFO;
+
+    public static TransferScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxTransfers maximum number of concurrent copies, {@code 0} for
+     *        no limit
+     * @param maxTransfersPerNode maximum number of concurrent copies to or
+     *        from a single node, {@code 0} for no limit
+     */
+    public synchronized void configure(int maxTransfers, int maxTransfersPerNode, Policy policy) {
+        this.maxTransfers = Math.max(0, maxTransfers);
+        this.maxTransfersPerNode = Math.max(0, maxTransfersPerNode);
+        this.policy = policy != null ? policy : Policy.FIFO;
+        dispatch();
+    }
+
+    /**
+     * Waits for a slot to copy files to or from the given node.
+     *
+     * @param logger the build log, which tells how long the copy was queued
+     */
+    public Slot acquire(String job, String node, PrintStream logger) throws InterruptedException {
+        Request request = new Request(job, node);
+        long start = System.currentTimeMillis();
+
+        synchronized(this) {
+            queue.add(request);
+            dispatch();
+            if(!request.granted) {
+                logger.printf("[copy-to-slave] Waiting for a transfer slot (%d copies in progress, %d queued).\n",
+                        running, queue.size());
+            }
+            try {
+                while(!request.granted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if(request.granted) {
+                    release(request);
+                }
+                else {
+                    queue.remove(request);
+                }
+                throw e;
+            }
+        }
+
+        long waited = System.currentTimeMillis() - start;
+        if(waited >= 1000) {
+            logger.printf("[copy-to-slave] Waited %d s for a transfer slot.\n", waited / 1000);
+        }
+        return new Slot(request);
+    }
+
+    private synchronized void release(Request request) {
+        running--;
+        decrement(runningByNode, request.node);
+        decrement(runningByJob, request.job);
+        dispatch();
+    }
+
+    /**
+     * Grants slots to queued requests as long as the limits allow it.
+     */
+    private void dispatch() {
+        boolean granted = false;
+        Request next;
+        while((maxTransfers == 0 || running < maxTransfers) && (next = next()) != null) {
+            queue.remove(next);
+            next.granted = true;
+            running++;
+            increment(runningByNode, next.node);
+            increment(runningByJob, next.job);
+            granted = true;
+        }
+        if(granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the request to be served next, or {@code null} if none of the
+     * queued ones can be served.
+     */
+    private Request next() {
+        Request best = null;
+        int bestRunning = Integer.MAX_VALUE;
+        for(Iterator<Request> it = queue.iterator(); it.hasNext();) {
+            Request request = it.next();
+            if(maxTransfersPerNode > 0 && count(runningByNode, request.node) >= maxTransfersPerNode) {
+                continue;
+            }
+            if(policy == Policy.FIFO) {
+                return request;
+            }
+            // fair share: the job having the fewest copies in progress first
+            int jobRunning = count(runningByJob, request.job);
+            if(jobRunning < bestRunning) {
+                best = request;
+                bestRunning = jobRunning;
+            }
+        }
+        return best;
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        counts.put(key, count(counts, key) + 1);
+    }
+
+    private static void decrement(Map<String, Integer> counts, String key) {
+        int count = count(counts, key);
+        if(count <= 1) {
+            counts.remove(key);
+        }
+        else {
+            counts.put(key, count - 1);
+        }
+    }
+
+    /**
+     * How queued copies are served.
+     */
+    public enum Policy {
+        /** In the order they've been queued. */
+        FIFO,
+        /** Jobs having the fewest copies in progress first, so that a job can't monopolize the slots. */
+        FAIR
+    }
+
+    /**
+     * The right to run one copy.
+     */
+    public class Slot {
+
+        private final Request request;
+        private boolean released;
+
+        private Slot(Request request) {
+            this.request = request;
+        }
+
+        public void release() {
+            synchronized(TransferScheduler.this) {
+                if(!released) {
+                    released = true;
+                    TransferScheduler.this.release(request);
+                }
+            }
+        }
+
+    }
+
+    private static class Request {
+
+        final String job;
+        final String node;
+        boolean granted;
+
+        Request(String job, String node) {
+            this.job = job;
+            this.node = node;
+        }
+
+    }
+
+    private final static TransferScheduler INSTANCE = new TransferScheduler();
+
+}
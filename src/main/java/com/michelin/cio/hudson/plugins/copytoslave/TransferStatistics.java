@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import java.io.Serializable;
+
+/**
+ * What happened during a copy: How long each phase took, how many files and
+ * bytes have been sent.
+ *
+ * <p>Parts of the statistics are computed on the slave and sent back to the
+ * master, where they get {@link #add}ed.</p>
+ */
+public class TransferStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1;
+
+    private String description;
+    private long scanTime;
+    private long negotiationTime;
+    private long archiveTime;
+    private long transferTime;
+    private long extractTime;
+    private long rawBytes;
+    private long wireBytes;
+    private int filesSent;
+    private int filesSkipped;
+    private int retries;
+
+    /**
+     * Adds the figures of {@code other} to this one. Times are summed too,
+     * which makes sense for the times spent by parallel streams.
+     */
+    public synchronized void add(TransferStatistics other) {
+        scanTime += other.scanTime;
+        negotiationTime += other.negotiationTime;
+        archiveTime += other.archiveTime;
+        transferTime += other.transferTime;
+        extractTime += other.extractTime;
+        rawBytes += other.rawBytes;
+        wireBytes += other.wireBytes;
+        filesSent += other.filesSent;
+        filesSkipped += other.filesSkipped;
+        retries += other.retries;
+    }
+
+    /**
+     * What has been copied from where to where.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Time spent scanning the source directory, in ms; When all the files are
+     * sent, scanning is done while archiving and is not measured separately.
+     */
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    public synchronized void addScanTime(long scanTime) {
+        this.scanTime += scanTime;
+    }
+
+    /**
+     * Time spent finding out which files the target already holds, in ms.
+     */
+    public long getNegotiationTime() {
+        return negotiationTime;
+    }
+
+    public synchronized void addNegotiationTime(long negotiationTime) {
+        this.negotiationTime += negotiationTime;
+    }
+
+    /**
+     * Time spent archiving (reading and compressing) the files on the source
+     * side, in ms, summed over all the streams.
+     */
+    public long getArchiveTime() {
+        return archiveTime;
+    }
+
+    public synchronized void addArchiveTime(long archiveTime) {
+        this.archiveTime += archiveTime;
+    }
+
+    /**
+     * Wall-clock time of the transfer itself, from the creation of the first
+     * pipe to the end of the extraction, in ms.
+     */
+    public long getTransferTime() {
+        return transferTime;
+    }
+
+    public synchronized void addTransferTime(long transferTime) {
+        this.transferTime += transferTime;
+    }
+
+    /**
+     * Time spent extracting the files on the target side, in ms, summed over
+     * all the streams.
+     */
+    public long getExtractTime() {
+        return extractTime;
+    }
+
+    public synchronized void addExtractTime(long extractTime) {
+        this.extractTime += extractTime;
+    }
+
+    /**
+     * Size of the archives before compression, in bytes.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public synchronized void addRawBytes(long rawBytes) {
+        this.rawBytes += rawBytes;
+    }
+
+    /**
+     * Number of bytes actually sent between the nodes.
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public synchronized void addWireBytes(long wireBytes) {
+        this.wireBytes += wireBytes;
+    }
+
+    /**
+     * Returns {@link #getRawBytes()} divided by {@link #getWireBytes()}.
+     */
+    public double getCompressionRatio() {
+        return wireBytes > 0 ? (double) rawBytes / wireBytes : 1;
+    }
+
+    public String getFormattedCompressionRatio() {
+        return String.format("%.2f", getCompressionRatio());
+    }
+
+    public int getFilesSent() {
+        return filesSent;
+    }
+
+    public synchronized void addFilesSent(int filesSent) {
+        this.filesSent += filesSent;
+    }
+
+    /**
+     * Number of files which haven't been sent because the target already
+     * held them, or got them from its cache.
+     */
+    public int getFilesSkipped() {
+        return filesSkipped;
+    }
+
+    public synchronized void addFilesSkipped(int filesSkipped) {
+        this.filesSkipped += filesSkipped;
+    }
+
+    /**
+     * Number of segments of a resumable copy which have been sent again.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    public synchronized void addRetries(int retries) {
+        this.retries += retries;
+    }
+
+    /**
+     * Total duration of the copy, in ms.
+     */
+    public long getTotalTime() {
+        return scanTime + negotiationTime + transferTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files sent, %d skipped, %d retries, %s (%s on the wire, ratio %.2f); scan: %d ms, negotiation: %d ms, "
+                + "archive: %d ms, transfer: %d ms, extraction: %d ms",
+                filesSent, filesSkipped, retries, formatSize(rawBytes), formatSize(wireBytes),
+                getCompressionRatio(), scanTime, negotiationTime, archiveTime, transferTime, extractTime);
+    }
+
+    public static String formatSize(long bytes) {
+        if(bytes < 1024) {
+            return bytes + " B";
+        }
+        if(bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        if(bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+/**
+ * Keeps the {@link TransferStatistics} of the copies done by a build, which
+ * are shown on the build page.
+ */
+public class TransferStatisticsAction implements Action {
+
+    private final List<TransferStatistics> statistics = new CopyOnWriteArrayList<TransferStatistics>();
+
+    /**
+     * Prints the statistics of a copy in the build log, attaches them to the
+     * build and adds them to the {@link TransferMetrics}.
+     */
+    public static void record(AbstractBuild<?, ?> build, String node, TransferStatistics statistics, PrintStream logger) {
+        logger.println("[copy-to-slave] " + statistics);
+
+        TransferStatisticsAction action;
+        synchronized(build) {
+            action = build.getAction(TransferStatisticsAction.class);
+            if(action == null) {
+                action = new TransferStatisticsAction();
+                build.addAction(action);
+            }
+        }
+        action.statistics.add(statistics);
+
+        TransferMetrics.get().record(build.getProject().getFullName(), node, statistics);
+    }
+
+    public List<TransferStatistics> getStatistics() {
+        return statistics;
+    }
+
+    public String getIconFileName() {
+        return "package.gif";
+    }
+
+    public String getDisplayName() {
+        return new Localizable(ResourceBundleHolder.get(TransferStatisticsAction.class), "DisplayName").toString();
+    }
+
+    public String getUrlName() {
+        return "copy-to-slave";
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.Util;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Copies a small tree with {@link LocalCopyEngine}, using each
+ * {@link FileLinker.Strategy}.
+ */
+public class LocalCopyEngineTest extends TestCase {
+
+    private final static long LAST_MODIFIED = 1300000000000L; // whole seconds
+
+    private File sourceDir;
+    private File targetDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        sourceDir = Util.createTempDir();
+        targetDir = Util.createTempDir();
+        write(new File(sourceDir, "a.txt"), "a");
+        write(new File(sourceDir, "dir/b.txt"), "bb");
+        write(new File(sourceDir, "dir/sub/c.bin"), "ccc");
+        write(new File(sourceDir, "dir/excluded.log"), "excluded");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(sourceDir);
+        Util.deleteRecursive(targetDir);
+        super.tearDown();
+    }
+
+    public void testCopy() throws Exception {
+        TransferStatistics statistics = copy(FileLinker.Strategy.COPY, false);
+
+        assertEquals(3, statistics.getFilesSent());
+        assertCopied("a.txt", "a");
+        assertCopied("dir/b.txt", "bb");
+        assertCopied("dir/sub/c.bin", "ccc");
+        assertFalse(new File(targetDir, "dir/excluded.log").exists());
+        assertIndependent("dir/b.txt");
+    }
+
+    public void testCopyFlatten() throws Exception {
+        copy(FileLinker.Strategy.COPY, true);
+
+        assertCopied("b.txt", "bb");
+        assertCopied("c.bin", "ccc");
+        assertFalse(new File(targetDir, "dir").exists());
+    }
+
+    public void testCopyOverwrites() throws Exception {
+        write(new File(targetDir, "a.txt"), "z"); // same size and date, other content
+        TransferStatistics statistics = copy(FileLinker.Strategy.COPY, false);
+
+        assertEquals(3, statistics.getFilesSent());
+        assertCopied("a.txt", "a");
+    }
+
+    public void testSkipUnchanged() throws Exception {
+        write(new File(targetDir, "a.txt"), "z"); // same size and date, other content
+        write(new File(targetDir, "dir/b.txt"), "bbb"); // other size
+        TransferStatistics statistics = copy(FileLinker.Strategy.SKIP_UNCHANGED, false);
+
+        assertEquals(1, statistics.getFilesSkipped());
+        assertEquals(2, statistics.getFilesSent());
+        assertEquals("z", FileUtils.readFileToString(new File(targetDir, "a.txt")));
+        assertCopied("dir/b.txt", "bb");
+        assertCopied("dir/sub/c.bin", "ccc");
+        assertIndependent("dir/sub/c.bin");
+    }
+
+    /**
+     * Files are cloned if the file system supports it, copied otherwise:
+     * Either way, the target files are distinct from the source ones.
+     */
+    public void testReflink() throws Exception {
+        TransferStatistics statistics = copy(FileLinker.Strategy.REFLINK, false);
+
+        assertEquals(3, statistics.getFilesSent());
+        assertCopied("a.txt", "a");
+        assertCopied("dir/b.txt", "bb");
+        assertCopied("dir/sub/c.bin", "ccc");
+        assertIndependent("a.txt");
+        assertIndependent("dir/sub/c.bin");
+    }
+
+    public void testReflinkFallsBackToCopy() throws Exception {
+        File source = new File(sourceDir, "a.txt");
+        File target = new File(targetDir, "a.txt");
+        File probe = new File(targetDir, "probe");
+        boolean reflinks = FileLinker.createReflink(source, probe);
+        probe.delete();
+
+        FileLinker.Strategy used = FileLinker.link(source, target, FileLinker.Strategy.REFLINK);
+
+        assertEquals(reflinks ? FileLinker.Strategy.REFLINK : FileLinker.Strategy.COPY, used);
+        assertEquals("a", FileUtils.readFileToString(target));
+        // the other strategies only matter to LocalCopyEngine: files are copied
+        assertEquals(FileLinker.Strategy.COPY, FileLinker.link(source, target, FileLinker.Strategy.SKIP_UNCHANGED));
+        assertEquals("a", FileUtils.readFileToString(target));
+    }
+
+    private TransferStatistics copy(FileLinker.Strategy strategy, boolean flatten) throws IOException {
+        TransferOptions options = new TransferOptions();
+        options.setLinkStrategy(strategy);
+        return new LocalCopyEngine(sourceDir.getAbsolutePath(), "**/*", "**/*.log", false, flatten, options).invoke(targetDir, null);
+    }
+
+    private void assertCopied(String path, String content) throws IOException {
+        File f = new File(targetDir, path);
+        assertTrue(path + " must be copied", f.isFile());
+        assertEquals(content, FileUtils.readFileToString(f));
+        assertEquals(LAST_MODIFIED, f.lastModified());
+    }
+
+    /**
+     * Checks that modifying the source file doesn't affect the target one.
+     */
+    private void assertIndependent(String path) throws IOException {
+        File source = new File(sourceDir, path);
+        String content = FileUtils.readFileToString(source);
+        FileUtils.writeStringToFile(source, "modified");
+        assertEquals(content, FileUtils.readFileToString(new File(targetDir, path)));
+    }
+
+    private static void write(File f, String content) throws IOException {
+        FileUtils.writeStringToFile(f, content);
+        f.setLastModified(LAST_MODIFIED);
+    }
+
+}
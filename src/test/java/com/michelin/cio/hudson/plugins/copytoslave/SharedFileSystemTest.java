@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Manufacture Française des Pneumatiques Michelin, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.michelin.cio.hudson.plugins.copytoslave;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.Callable;
+import hudson.remoting.LocalChannel;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+
+/**
+ * Runs the detection of {@link SharedFileSystem} through a {@link LocalChannel},
+ * which sees the same file system as the "master" unless told otherwise.
+ */
+public class SharedFileSystemTest extends TestCase {
+
+    private ExecutorService executor;
+    private File masterDir;
+    private File slaveDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newCachedThreadPool();
+        masterDir = Util.createTempDir();
+        slaveDir = Util.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        Util.deleteRecursive(masterDir);
+        Util.deleteRecursive(slaveDir);
+        super.tearDown();
+    }
+
+    public void testShared() throws Exception {
+        FilePath source = new FilePath(masterDir);
+        FilePath target = new FilePath(new LocalChannel(executor), slaveDir.getAbsolutePath());
+
+        assertTrue(SharedFileSystem.isShared(source, target));
+        assertEquals("the marker must be deleted", 0, masterDir.list().length);
+    }
+
+    public void testNotShared() throws Exception {
+        FilePath source = new FilePath(masterDir);
+        FilePath target = new FilePath(new OtherFileSystemChannel(executor, masterDir, slaveDir), slaveDir.getAbsolutePath());
+
+        assertFalse(SharedFileSystem.isShared(source, target));
+        assertEquals("the marker must be deleted", 0, masterDir.list().length);
+    }
+
+    public void testMissingSourceDirectory() throws Exception {
+        FilePath source = new FilePath(new File(masterDir, "missing"));
+        FilePath target = new FilePath(new LocalChannel(executor), slaveDir.getAbsolutePath());
+
+        assertFalse(SharedFileSystem.isShared(source, target));
+    }
+
+    public void testLocalTarget() throws Exception {
+        assertFalse(SharedFileSystem.isShared(new FilePath(masterDir), new FilePath(slaveDir)));
+    }
+
+    public void testOutcomeIsRemembered() throws Exception {
+        FilePath source = new FilePath(masterDir);
+        OtherFileSystemChannel channel = new OtherFileSystemChannel(executor, masterDir, slaveDir);
+        FilePath target = new FilePath(channel, slaveDir.getAbsolutePath());
+
+        assertFalse(SharedFileSystem.isShared(source, target));
+        channel.shared = true;
+        assertFalse("the first probe must be reused", SharedFileSystem.isShared(source, target));
+    }
+
+    /**
+     * Channel to a "slave" which, at the path of the source directory of the
+     * master, sees another directory.
+     */
+    private static class OtherFileSystemChannel extends LocalChannel {
+
+        private final File masterDir;
+        private final File slaveDir;
+        volatile boolean shared;
+
+        OtherFileSystemChannel(ExecutorService executor, File masterDir, File slaveDir) {
+            super(executor);
+            this.masterDir = masterDir;
+            this.slaveDir = slaveDir;
+        }
+
+        @Override
+        public <V, T extends Throwable> V call(Callable<V, T> callable) throws T {
+            if(shared) {
+                return super.call(callable);
+            }
+            File hidden = new File(masterDir.getPath() + ".hidden");
+            if(!masterDir.renameTo(hidden) || !slaveDir.renameTo(masterDir)) {
+                throw new IllegalStateException("Failed to swap " + masterDir + " and " + slaveDir);
+            }
+            try {
+                return super.call(callable);
+            } finally {
+                masterDir.renameTo(slaveDir);
+                hidden.renameTo(masterDir);
+            }
+        }
+
+    }
+
+}